@@ -0,0 +1,102 @@
+package Bench;
+
+import Common.Compression;
+import Common.Frame;
+import Common.Request;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CompressionBenchmark class that measures the CPU cost of compressing the
+ * values of a frame against the bytes it saves on the wire, for several value
+ * sizes and for values that compress well or not at all.
+ * <p>
+ * The size of the frame on the wire, with and without compression, is printed
+ * when each trial starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({ "256", "4096", "65536" })
+    public int valueSize;
+
+    @Param({ "text", "random" })
+    public String content;
+
+    @Param({ "0", "1024" })
+    public int threshold;
+
+    private Frame frame;
+    private Compression compression;
+    private ByteBuffer encoded;
+
+    /**
+     * Builds the frame and its encoded form. A threshold of 0 disables
+     * compression.
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        Map<String, byte[]> map = new LinkedHashMap<>();
+        for (int i = 0; i < 16; i++) {
+            map.put(String.format("%07d", i), value(random));
+        }
+        frame = new Frame(Request.PUT, 42, map);
+        compression = threshold > 0 ? new Compression(threshold) : null;
+        encoded = frame.encode(false, compression);
+        System.out.printf("%nwire bytes: %d of %d%n", encoded.remaining(), frame.encodedLength());
+    }
+
+    private byte[] value(Random random) {
+        byte[] value = new byte[valueSize];
+        if (content.equals("random")) {
+            random.nextBytes(value);
+            return value;
+        }
+        // Words drawn from a small vocabulary, like JSON or log lines
+        String[] words = { "user", "name", "id", "value", "status", "ok", "true", "false", "timestamp", "\":\"" };
+        int n = 0;
+        while (n < valueSize) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            for (int i = 0; i < word.length && n < valueSize; i++) {
+                value[n++] = word[i];
+            }
+            if (n < valueSize) {
+                value[n++] = ' ';
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Encodes the frame, compressing the values above the threshold.
+     *
+     * @return The buffer
+     */
+    @Benchmark
+    public ByteBuffer encode() {
+        return frame.encode(false, compression);
+    }
+
+    /**
+     * Decodes the frame, decompressing the values that were compressed.
+     *
+     * @return The frame
+     * @throws IOException If an I/O error occurs
+     */
+    @Benchmark
+    public Frame decode() throws IOException {
+        return Frame.decode(encoded.duplicate());
+    }
+}
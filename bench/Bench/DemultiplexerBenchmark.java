@@ -0,0 +1,124 @@
+package Bench;
+
+import Common.Connection;
+import Common.Demultiplexer;
+import Common.Frame;
+import Common.Request;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DemultiplexerBenchmark class that measures how fast the demultiplexer matches
+ * replies to the threads waiting for them. The connection is an in-memory
+ * loopback that answers every request at once, so only the dispatch is
+ * measured, with one and with many threads waiting on the same connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DemultiplexerBenchmark {
+
+    private static final Map<String, byte[]> REQUEST = Collections.singletonMap("key", new byte[100]);
+
+    private LoopbackConnection connection;
+    private Demultiplexer demultiplexer;
+
+    /**
+     * LoopbackConnection class that replies to every frame sent with the same
+     * frame.
+     */
+    private static class LoopbackConnection extends Connection {
+        private static final Frame CLOSED = new Frame(0, Collections.emptyMap());
+        private final BlockingQueue<Frame> replies = new LinkedBlockingQueue<>();
+
+        @Override
+        public void send(Frame frame) {
+            replies.add(frame);
+        }
+
+        @Override
+        public Frame receive() throws IOException {
+            try {
+                Frame frame = replies.take();
+                if (frame == CLOSED) {
+                    throw new IOException("Connection closed");
+                }
+                return frame;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            replies.add(CLOSED);
+        }
+    }
+
+    /**
+     * Starts the demultiplexer on a loopback connection.
+     */
+    @Setup
+    public void setup() {
+        connection = new LoopbackConnection();
+        demultiplexer = new Demultiplexer(connection);
+        demultiplexer.start();
+    }
+
+    /**
+     * Stops the reader thread of the demultiplexer.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        demultiplexer.close();
+    }
+
+    /**
+     * Sends a request and blocks for its reply, from a single thread.
+     *
+     * @return The reply
+     * @throws Exception If the round trip fails
+     */
+    @Benchmark
+    @Threads(1)
+    public Frame roundTrip() throws Exception {
+        int id = demultiplexer.send(Request.GET, REQUEST);
+        return demultiplexer.receive(id);
+    }
+
+    /**
+     * Sends a request and blocks for its reply, from many threads at once.
+     *
+     * @return The reply
+     * @throws Exception If the round trip fails
+     */
+    @Benchmark
+    @Threads(64)
+    public Frame roundTripManyWaiters() throws Exception {
+        int id = demultiplexer.send(Request.GET, REQUEST);
+        return demultiplexer.receive(id);
+    }
+
+    /**
+     * Sends a request and waits for the future of its reply, from many threads
+     * at once.
+     *
+     * @return The reply
+     */
+    @Benchmark
+    @Threads(64)
+    public Frame roundTripAsyncManyWaiters() {
+        return demultiplexer.sendAsync(Request.GET, REQUEST).join();
+    }
+}
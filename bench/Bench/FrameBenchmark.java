@@ -0,0 +1,103 @@
+package Bench;
+
+import Common.Frame;
+import Common.Request;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FrameBenchmark class that measures the frame codec, both the stream-based
+ * serialization used by the blocking connections and the buffer-based encoding
+ * used by the non-blocking transport and the log.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    @Param({ "16", "1024", "65536" })
+    public int valueSize;
+
+    @Param({ "1", "16" })
+    public int pairs;
+
+    private Frame frame;
+    private byte[] serialized;
+    private ByteArrayOutputStream out;
+    private ByteBuffer buffer;
+    private ByteBuffer encoded;
+
+    /**
+     * Builds the frame and its encoded forms.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Setup
+    public void setup() throws IOException {
+        Map<String, byte[]> map = new LinkedHashMap<>();
+        for (int i = 0; i < pairs; i++) {
+            map.put(String.format("%07d", i), new byte[valueSize]);
+        }
+        frame = new Frame(Request.PUT, 42, map);
+        out = new ByteArrayOutputStream(frame.encodedLength());
+        frame.serialize(new DataOutputStream(out));
+        serialized = out.toByteArray();
+        buffer = ByteBuffer.allocate(frame.encodedLength());
+        encoded = frame.encode(false);
+    }
+
+    /**
+     * Serializes the frame to a stream.
+     *
+     * @return The serialized size
+     * @throws IOException If an I/O error occurs
+     */
+    @Benchmark
+    public int serialize() throws IOException {
+        out.reset();
+        frame.serialize(new DataOutputStream(out));
+        return out.size();
+    }
+
+    /**
+     * Deserializes the frame from a stream.
+     *
+     * @return The frame
+     * @throws IOException If an I/O error occurs
+     */
+    @Benchmark
+    public Frame deserialize() throws IOException {
+        return Frame.deserialize(new DataInputStream(new ByteArrayInputStream(serialized)));
+    }
+
+    /**
+     * Encodes the frame into a reused buffer.
+     *
+     * @return The buffer
+     */
+    @Benchmark
+    public ByteBuffer encode() {
+        buffer.clear();
+        frame.encode(buffer);
+        return buffer;
+    }
+
+    /**
+     * Decodes the frame from a buffer.
+     *
+     * @return The frame
+     * @throws IOException If an I/O error occurs
+     */
+    @Benchmark
+    public Frame decode() throws IOException {
+        return Frame.decode(encoded.duplicate());
+    }
+}
@@ -0,0 +1,165 @@
+package Bench;
+
+import Server.Store;
+import Server.ValueArena;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StoreBenchmark class that measures the PUT, GET and GET_WHEN paths of the
+ * store, without the network, from one thread and from as many threads as
+ * there are processors. Other thread counts can be measured with
+ * {@code -t <threads>}. The multiGet group measures snapshot reads of many keys
+ * against a writer that keeps overwriting them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({ "100000" })
+    public int keys;
+
+    @Param({ "100", "4096" })
+    public int valueSize;
+
+    @Param({ "false", "true" })
+    public boolean offHeap;
+
+    private Store store;
+    private byte[] value;
+
+    /**
+     * Fills the store with every key.
+     */
+    @Setup
+    public void setup() {
+        store = new Store("", null, offHeap ? new ValueArena(4 << 20) : null, 0);
+        value = new byte[valueSize];
+        for (int i = 0; i < keys; i++) {
+            store.put(Collections.singletonMap(key(i), value));
+        }
+    }
+
+    /**
+     * Overwrites a random key.
+     *
+     * @return The future of the write
+     */
+    @Benchmark
+    @Threads(1)
+    public CompletableFuture<Void> put() {
+        return store.put(Collections.singletonMap(randomKey(), value));
+    }
+
+    /**
+     * Overwrites a random key from every processor.
+     *
+     * @return The future of the write
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public CompletableFuture<Void> putContended() {
+        return store.put(Collections.singletonMap(randomKey(), value));
+    }
+
+    /**
+     * Reads a random key.
+     *
+     * @return The value
+     */
+    @Benchmark
+    @Threads(1)
+    public byte[] get() {
+        return store.get(randomKey());
+    }
+
+    /**
+     * Reads a random key from every processor.
+     *
+     * @return The value
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] getContended() {
+        return store.get(randomKey());
+    }
+
+    /**
+     * Registers a get-when request on a random key and satisfies it with a put.
+     *
+     * @return The value delivered to the request
+     */
+    @Benchmark
+    @Threads(1)
+    public byte[] getWhen() {
+        return getWhenRoundTrip();
+    }
+
+    /**
+     * Registers a get-when request on a random key and satisfies it with a put,
+     * from every processor.
+     *
+     * @return The value delivered to the request
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] getWhenContended() {
+        return getWhenRoundTrip();
+    }
+
+    private byte[] getWhenRoundTrip() {
+        String key = randomKey();
+        byte[] cond = new byte[] { (byte) ThreadLocalRandom.current().nextInt(1, 128) };
+        byte[][] delivered = new byte[1][];
+        store.getWhen(key, key, cond, v -> delivered[0] = v);
+        store.put(Collections.singletonMap(key, cond));
+        return delivered[0];
+    }
+
+    /**
+     * Reads 64 random keys from one snapshot while another thread writes.
+     *
+     * @return The values
+     */
+    @Benchmark
+    @Group("multiGet")
+    @GroupThreads(3)
+    public Map<String, byte[]> multiGetReader() {
+        List<String> batch = new ArrayList<>(64);
+        for (int i = 0; i < 64; i++) {
+            batch.add(randomKey());
+        }
+        return store.get(batch);
+    }
+
+    /**
+     * Overwrites a random key while the readers of the group read.
+     *
+     * @return The future of the write
+     */
+    @Benchmark
+    @Group("multiGet")
+    @GroupThreads(1)
+    public CompletableFuture<Void> multiGetWriter() {
+        return store.put(Collections.singletonMap(randomKey(), value));
+    }
+
+    private String randomKey() {
+        return key(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    private static String key(int i) {
+        return String.format("%07d", i);
+    }
+}
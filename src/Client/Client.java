@@ -3,15 +3,44 @@ package Client;
 import Common.*;
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Client class that handles communication with the server.
+ * <p>
+ * Every operation is sent under its own request id, so a single client can be
+ * used by many threads at once with their requests pipelined on one connection.
+ * The asynchronous variants return without blocking, and their futures are
+ * completed by the reader thread of the demultiplexer, so callbacks attached to
+ * them should not block.
+ * <p>
+ * Large values can be compressed on the wire both ways, enabled with
+ * {@link #enableCompression}.
+ * <p>
+ * Keys can be compared and set, incremented as counters or put if absent in
+ * one round trip, the server checking and writing them in a single step.
+ * <p>
+ * Keys can be read in order, a page at a time, with {@link #scanRange} and
+ * {@link #scanPrefix}.
+ * <p>
+ * A login returns a session token, with which a new connection can resume the
+ * session with {@link #resume} after this one is lost, without sending the
+ * credentials again.
+ * <p>
+ * Reads can be served from a local cache, enabled with {@link #enableCache}.
+ * The server then pushes an invalidation whenever a cached key is written, and
+ * the client drops the keys it writes itself, so it always reads its own
+ * writes.
  */
 public class Client implements AutoCloseable {
     private final Demultiplexer demultiplexer;
-    private final ReentrantLock lock = new ReentrantLock();
+    private volatile ClientCache cache = null;
+    private volatile String sessionToken = null;
+    private volatile long leaseMillis = 0;
     public String username;
 
     /**
@@ -34,22 +63,35 @@ public class Client implements AutoCloseable {
      *
      * @param key   The key to store
      * @param value The value to store
-     * @throws IOException          If an I/O error occurs
+     * @throws IOException          If an I/O error occurs or the server refuses the write
      * @throws InterruptedException If the thread is interrupted
      */
     public void put(String key, byte[] value) throws IOException, InterruptedException {
-        lock.lock();
-        try {
-            Map<String, byte[]> pair = new HashMap<>();
-            pair.put(key, value);
-            Frame frame = new Frame(Request.PUT, pair);
-            demultiplexer.send(frame);
-            demultiplexer.receive(Request.PUT);
-        } finally {
-            lock.unlock();
+        Map<String, byte[]> pair = new HashMap<>();
+        pair.put(key, value);
+        forget(pair.keySet());
+        int id = demultiplexer.send(Request.PUT, pair);
+        Frame responseFrame = demultiplexer.receive(id);
+
+        if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+            throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
         }
     }
 
+    /**
+     * Sends a PUT request to the server for a key that expires.
+     *
+     * @param key       The key to store
+     * @param value     The value to store
+     * @param ttlMillis The time after which the key expires, in milliseconds, or
+     *                  0 if it does not
+     * @throws IOException          If an I/O error occurs or the server refuses the write
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void put(String key, byte[] value, long ttlMillis) throws IOException, InterruptedException {
+        multiPut(Collections.singletonMap(key, value), Collections.singletonMap(key, ttlMillis));
+    }
+
     /**
      * Sends a GET request to the server.
      *
@@ -59,33 +101,50 @@ public class Client implements AutoCloseable {
      * @throws InterruptedException If the thread is interrupted
      */
     public byte[] get(String key) throws IOException, InterruptedException {
-        lock.lock();
-        try {
-            Map<String, byte[]> request = new HashMap<>();
-            request.put(key, new byte[0]);
-            demultiplexer.send(new Frame(Request.GET, request));
-            Frame responseFrame = demultiplexer.receive(Request.GET);
-            return responseFrame.keyValuePairs.get(key);
-        } finally {
-            lock.unlock();
-        }
+        return multiGet(Collections.singleton(key)).get(key);
     }
 
     /**
      * Sends a multi-put request to the server.
      *
      * @param pairs The key-value pairs to store
-     * @throws IOException          If an I/O error occurs
+     * @throws IOException          If an I/O error occurs or the server refuses the write
      * @throws InterruptedException If the thread is interrupted
      */
     public void multiPut(Map<String, byte[]> pairs) throws IOException, InterruptedException {
-        lock.lock();
-        try {
-            Frame frame = new Frame(Request.PUT, pairs);
-            demultiplexer.send(frame);
-            demultiplexer.receive(Request.PUT);
-        } finally {
-            lock.unlock();
+        forget(pairs.keySet());
+        int id = demultiplexer.send(Request.PUT, pairs);
+        Frame responseFrame = demultiplexer.receive(id);
+
+        if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+            throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
+        }
+    }
+
+    /**
+     * Sends a multi-put request to the server, some of whose keys expire.
+     *
+     * @param pairs The key-value pairs to store
+     * @param ttls  The time after which each key expires, in milliseconds, keys
+     *              missing or mapped to 0 do not expire
+     * @throws IOException          If an I/O error occurs or the server refuses the write
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void multiPut(Map<String, byte[]> pairs, Map<String, Long> ttls) throws IOException, InterruptedException {
+        // The times to live follow the order of the pairs in the frame
+        Map<String, byte[]> request = new LinkedHashMap<>(pairs);
+        ByteBuffer buf = ByteBuffer.allocate(8 * request.size());
+        for (String key : request.keySet()) {
+            Long ttl = ttls.get(key);
+            buf.putLong(ttl != null ? ttl : 0);
+        }
+        request.put(Request.TTLS, buf.array());
+        forget(pairs.keySet());
+        int id = demultiplexer.send(Request.PUT, request);
+        Frame responseFrame = demultiplexer.receive(id);
+
+        if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+            throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
         }
     }
 
@@ -98,17 +157,257 @@ public class Client implements AutoCloseable {
      * @throws InterruptedException If the thread is interrupted
      */
     public Map<String, byte[]> multiGet(Set<String> keys) throws IOException, InterruptedException {
-        lock.lock();
-        try {
-            Map<String, byte[]> request = new HashMap<>();
-            for (String key : keys) {
+        ClientCache cache = this.cache;
+        Map<String, byte[]> results = new HashMap<>();
+        Map<String, byte[]> request = new HashMap<>();
+        for (String key : keys) {
+            byte[] value = cache != null ? cache.get(key) : null;
+            if (value != null) {
+                results.put(key, value);
+            } else {
                 request.put(key, new byte[0]);
             }
-            demultiplexer.send(new Frame(Request.GET, request));
-            Frame responseFrame = demultiplexer.receive(Request.GET);
-            return responseFrame.keyValuePairs;
-        } finally {
-            lock.unlock();
+        }
+        if (request.isEmpty()) {
+            return results;
+        }
+        // Take the epoch before sending, an invalidation may overtake the reply
+        long epoch = cache != null ? cache.epoch() : 0;
+        int id = demultiplexer.send(Request.GET, request);
+        Map<String, byte[]> values = valuesOf(demultiplexer.receive(id));
+        if (cache != null) {
+            cache.fill(values, epoch);
+        }
+        results.putAll(values);
+        return results;
+    }
+
+    /**
+     * Sends a multi-get request to the server and returns the version of every
+     * value as well, to be used in conditional writes. The cache is bypassed.
+     *
+     * @param keys The keys to retrieve
+     * @return The values and versions, a missing key has a null value and
+     *         version 0
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public Map<String, Versioned> multiGetVersioned(Set<String> keys) throws IOException, InterruptedException {
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        for (String key : keys) {
+            request.put(key, new byte[0]);
+        }
+        int id = demultiplexer.send(Request.GET, request);
+        Frame responseFrame = demultiplexer.receive(id);
+        Map<String, Versioned> results = new LinkedHashMap<>();
+        ByteBuffer versions = ByteBuffer.wrap(responseFrame.keyValuePairs.get(Request.VERSIONS));
+        for (Map.Entry<String, byte[]> entry : responseFrame.keyValuePairs.entrySet()) {
+            if (!entry.getKey().equals(Request.VERSIONS)) {
+                long version = versions.getLong();
+                results.put(entry.getKey(), new Versioned(version != 0 ? entry.getValue() : null, version));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sends a get request to the server and returns the version of the value as
+     * well, to be used in conditional writes.
+     *
+     * @param key The key to retrieve
+     * @return The value and its version, a null value and version 0 if the key
+     *         does not exist
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public Versioned getVersioned(String key) throws IOException, InterruptedException {
+        return multiGetVersioned(Collections.singleton(key)).get(key);
+    }
+
+    /**
+     * Returns the values of a get reply, without the versions.
+     */
+    private static Map<String, byte[]> valuesOf(Frame responseFrame) {
+        Map<String, byte[]> values = new HashMap<>(responseFrame.keyValuePairs);
+        values.remove(Request.VERSIONS);
+        return values;
+    }
+
+    /**
+     * Sets the value of a key only if it holds the expected value.
+     *
+     * @param key      The key to write
+     * @param expected The value the key must hold
+     * @param value    The new value
+     * @return Whether the value was written, and the value and version of the
+     *         key
+     * @throws IOException          If an I/O error occurs or the server refuses the write
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public Outcome compareAndSet(String key, byte[] expected, byte[] value) throws IOException, InterruptedException {
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        request.put("key", key.getBytes(StandardCharsets.UTF_8));
+        request.put("value", value);
+        request.put("expected", expected);
+        return conditional(Request.CAS, key, request);
+    }
+
+    /**
+     * Sets the value of a key only if it is still at the expected version, as
+     * read by {@link #getVersioned}.
+     *
+     * @param key             The key to write
+     * @param expectedVersion The version the key must be at, 0 if it must not
+     *                        exist
+     * @param value           The new value
+     * @return Whether the value was written, and the value and version of the
+     *         key
+     * @throws IOException          If an I/O error occurs or the server refuses the write
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public Outcome compareAndSet(String key, long expectedVersion, byte[] value)
+            throws IOException, InterruptedException {
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        request.put("key", key.getBytes(StandardCharsets.UTF_8));
+        request.put("value", value);
+        request.put("version", ByteBuffer.allocate(8).putLong(expectedVersion).array());
+        return conditional(Request.CAS, key, request);
+    }
+
+    /**
+     * Stores the value of a key only if the key does not exist.
+     *
+     * @param key   The key to write
+     * @param value The value
+     * @return Whether the value was written, and the value and version of the
+     *         key
+     * @throws IOException          If an I/O error occurs or the server refuses the write
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public Outcome putIfAbsent(String key, byte[] value) throws IOException, InterruptedException {
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        request.put("key", key.getBytes(StandardCharsets.UTF_8));
+        request.put("value", value);
+        return conditional(Request.PUT_IF_ABSENT, key, request);
+    }
+
+    /**
+     * Adds a delta to a counter, a key holding a number in decimal text. A key
+     * that does not exist counts as 0.
+     *
+     * @param key   The key of the counter
+     * @param delta The amount to add
+     * @return The new value of the counter
+     * @throws IOException          If an I/O error occurs, the key does not hold a
+     *                              number or the counter would overflow
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public long increment(String key, long delta) throws IOException, InterruptedException {
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        request.put("key", key.getBytes(StandardCharsets.UTF_8));
+        request.put("delta", ByteBuffer.allocate(8).putLong(delta).array());
+        return Long.parseLong(new String(conditional(Request.INCR, key, request).getValue(),
+                StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Subtracts a delta from a counter.
+     *
+     * @param key   The key of the counter
+     * @param delta The amount to subtract
+     * @return The new value of the counter
+     * @throws IOException          If an I/O error occurs, the key does not hold a
+     *                              number or the counter would overflow
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public long decrement(String key, long delta) throws IOException, InterruptedException {
+        if (delta == Long.MIN_VALUE) {
+            throw new IOException("Error - counter overflow.");
+        }
+        return increment(key, -delta);
+    }
+
+    /**
+     * Sends a conditional write and reads its outcome.
+     */
+    private Outcome conditional(int tag, String key, Map<String, byte[]> request)
+            throws IOException, InterruptedException {
+        forget(Collections.singleton(key));
+        int id = demultiplexer.send(tag, request);
+        Frame responseFrame = demultiplexer.receive(id);
+
+        if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+            throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
+        }
+        return new Outcome(responseFrame.keyValuePairs.get("applied")[0] == 1,
+                responseFrame.keyValuePairs.get("value"),
+                ByteBuffer.wrap(responseFrame.keyValuePairs.get("version")).getLong());
+    }
+
+    /**
+     * Scans the keys from {@code start}, inclusive, to {@code end}, exclusive, in
+     * key order.
+     *
+     * @param start The first key, or null to start with the smallest key
+     * @param end   The key at which the range ends, or null for no end
+     * @param limit The maximum number of pairs of the page
+     * @param after The continuation token of the previous page, or null for the
+     *              first page
+     * @return The page of pairs
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public ScanPage scanRange(String start, String end, int limit, String after)
+            throws IOException, InterruptedException {
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        request.put("start", start != null ? start.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        request.put("end", end != null ? end.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        return scan(request, limit, after);
+    }
+
+    /**
+     * Scans the keys that start with a prefix, in key order.
+     *
+     * @param prefix The prefix of the keys
+     * @param limit  The maximum number of pairs of the page
+     * @param after  The continuation token of the previous page, or null for the
+     *               first page
+     * @return The page of pairs
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public ScanPage scanPrefix(String prefix, int limit, String after) throws IOException, InterruptedException {
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        request.put("prefix", prefix.getBytes(StandardCharsets.UTF_8));
+        return scan(request, limit, after);
+    }
+
+    /**
+     * Sends a scan request and collects the frames of its page, which the server
+     * streams until the one holding the continuation token.
+     */
+    private ScanPage scan(Map<String, byte[]> request, int limit, String after)
+            throws IOException, InterruptedException {
+        request.put("limit", Integer.toString(limit).getBytes());
+        if (after != null) {
+            request.put("after", after.getBytes(StandardCharsets.UTF_8));
+        }
+        int id = demultiplexer.send(Request.SCAN, request);
+        Map<String, byte[]> pairs = new LinkedHashMap<>();
+        while (true) {
+            Frame responseFrame = demultiplexer.receive(id);
+            if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+                throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
+            }
+            for (Map.Entry<String, byte[]> entry : responseFrame.keyValuePairs.entrySet()) {
+                if (!entry.getKey().equals(Request.SCAN_NEXT)) {
+                    pairs.put(entry.getKey(), entry.getValue());
+                }
+            }
+            byte[] next = responseFrame.keyValuePairs.get(Request.SCAN_NEXT);
+            if (next != null) {
+                return new ScanPage(pairs, next.length > 0 ? new String(next, StandardCharsets.UTF_8) : null);
+            }
         }
     }
 
@@ -122,21 +421,176 @@ public class Client implements AutoCloseable {
      */
     public void getWhen(String key, String keyCond, byte[] valueCond, AsyncCallback callback) {
         System.out.println("Client: starting getWhen operation");
-        new Thread(() -> {
-            try {
-                Map<String, byte[]> request = new HashMap<>();
-                request.put(key, new byte[0]);
-                request.put(keyCond, valueCond);
+        getWhenAsync(key, keyCond, valueCond).whenComplete((result, e) -> {
+            if (e == null) {
+                callback.onSuccess(result);
+                return;
+            }
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            callback.onError(cause instanceof Exception ? (Exception) cause : new Exception(cause));
+        });
+    }
 
-                demultiplexer.send(new Frame(Request.GET_WHEN, request));
+    /**
+     * Sends a PUT request to the server without waiting for the reply.
+     *
+     * @param key   The key to store
+     * @param value The value to store
+     * @return A future completed once the server has stored the value
+     */
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return multiPutAsync(Collections.singletonMap(key, value));
+    }
 
-                Frame responseFrame = demultiplexer.receive(Request.GET_WHEN);
+    /**
+     * Sends a GET request to the server without waiting for the reply.
+     *
+     * @param key The key to retrieve
+     * @return A future completed with the value associated with the key
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return multiGetAsync(Collections.singleton(key)).thenApply(values -> values.get(key));
+    }
 
-                callback.onSuccess(responseFrame.keyValuePairs.get(key));
-            } catch (IOException | InterruptedException e) {
-                callback.onError(e);
+    /**
+     * Sends a multi-put request to the server without waiting for the reply.
+     *
+     * @param pairs The key-value pairs to store
+     * @return A future completed once the server has stored the values, or
+     *         exceptionally if the server refused them
+     */
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs) {
+        forget(pairs.keySet());
+        return demultiplexer.sendAsync(Request.PUT, pairs).thenApply(responseFrame -> {
+            if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+                throw new CompletionException(
+                        new IOException(new String(responseFrame.keyValuePairs.get("ERROR"))));
             }
-        }).start();
+            return null;
+        });
+    }
+
+    /**
+     * Sends a multi-get request to the server without waiting for the reply.
+     *
+     * @param keys The keys to retrieve
+     * @return A future completed with the key-value pairs retrieved
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) {
+        Map<String, byte[]> request = new HashMap<>();
+        for (String key : keys) {
+            request.put(key, new byte[0]);
+        }
+        return demultiplexer.sendAsync(Request.GET, request).thenApply(Client::valuesOf);
+    }
+
+    /**
+     * Sends a get-when request to the server without waiting for the reply.
+     *
+     * @param key       The key to retrieve
+     * @param keyCond   The condition key
+     * @param valueCond The condition value
+     * @return A future completed with the value of the key once the condition
+     *         holds
+     */
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
+        // The requested key goes first, the server relies on the order of the pairs
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        request.put(key, new byte[0]);
+        request.put(keyCond, valueCond);
+        return demultiplexer.sendAsync(Request.GET_WHEN, request)
+                .thenApply(responseFrame -> responseFrame.keyValuePairs.get(key));
+    }
+
+    /**
+     * Enables the local cache of the values read by {@link #get} and
+     * {@link #multiGet}.
+     *
+     * @param capacity The maximum number of cached keys
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void enableCache(int capacity) throws IOException, InterruptedException {
+        ClientCache cache = new ClientCache(capacity);
+        demultiplexer.onPush(frame -> {
+            if (frame.tag == Request.INVALIDATE) {
+                cache.invalidate(frame.keyValuePairs.keySet());
+            }
+        });
+        int id = demultiplexer.send(Request.CACHE, Collections.emptyMap());
+        demultiplexer.receive(id);
+        this.cache = cache;
+    }
+
+    /**
+     * Negotiates the compression of the values sent on the connection, in both
+     * directions.
+     *
+     * @param threshold The size from which values are compressed
+     * @return True if the server accepted, false if values are still sent as is
+     * @throws IOException          If an I/O error occurs or the threshold is
+     *                              invalid
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public boolean enableCompression(int threshold) throws IOException, InterruptedException {
+        Map<String, byte[]> request = new LinkedHashMap<>();
+        request.put("compression", Compression.DEFLATE.getBytes());
+        request.put("threshold", Integer.toString(threshold).getBytes());
+        int id = demultiplexer.send(Request.HELLO, request);
+        Frame responseFrame = demultiplexer.receive(id);
+        if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+            throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
+        }
+        byte[] codec = responseFrame.keyValuePairs.get("compression");
+        if (codec == null || !Compression.DEFLATE.equals(new String(codec))) {
+            return false;
+        }
+        demultiplexer.getConnection().setCompression(new Compression(threshold));
+        return true;
+    }
+
+    /**
+     * Drops keys about to be written from the local cache.
+     */
+    private void forget(Set<String> keys) {
+        ClientCache cache = this.cache;
+        if (cache != null) {
+            cache.invalidate(keys);
+        }
+    }
+
+    /**
+     * Requests the live metrics of the server.
+     *
+     * @return The metrics, by name, in the order the server sent them
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public Map<String, String> stats() throws IOException, InterruptedException {
+        int id = demultiplexer.send(Request.STATS, Collections.emptyMap());
+        Frame responseFrame = demultiplexer.receive(id);
+        Map<String, String> stats = new LinkedHashMap<>();
+        responseFrame.keyValuePairs.forEach((name, value) -> stats.put(name, new String(value)));
+        return stats;
+    }
+
+    /**
+     * Promotes the server, which must be a backup, to primary, proving with the
+     * replication key that the request comes from a peer.
+     *
+     * @param replicationKey The replication key of the server
+     * @throws IOException          If an I/O error occurs, the server is not a
+     *                              backup or the key is wrong
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void promote(String replicationKey) throws IOException, InterruptedException {
+        int id = demultiplexer.send(Request.PROMOTE,
+                Collections.singletonMap(Request.REPLICATION_KEY, replicationKey.getBytes(StandardCharsets.UTF_8)));
+        Frame responseFrame = demultiplexer.receive(id);
+
+        if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+            throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
+        }
     }
 
     /**
@@ -151,8 +605,8 @@ public class Client implements AutoCloseable {
     public boolean register(String username, String password) throws IOException, InterruptedException {
         Map<String, byte[]> credentials = new HashMap<>();
         credentials.put(username, password.getBytes());
-        demultiplexer.send(new Frame(Request.REGISTER, credentials));
-        Frame responseFrame = demultiplexer.receive(Request.REGISTER);
+        int id = demultiplexer.send(Request.REGISTER, credentials);
+        Frame responseFrame = demultiplexer.receive(id);
 
         if (responseFrame.keyValuePairs.containsKey("ERROR")) {
             throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
@@ -173,12 +627,12 @@ public class Client implements AutoCloseable {
     public boolean authenticate(String username, String password) throws IOException, InterruptedException {
         Map<String, byte[]> credentials = new HashMap<>();
         credentials.put(username, password.getBytes());
-        demultiplexer.send(new Frame(Request.AUTH, credentials));
-        Frame responseFrame = demultiplexer.receive(Request.AUTH);
+        int id = demultiplexer.send(Request.AUTH, credentials);
+        Frame responseFrame = demultiplexer.receive(id);
 
         while (responseFrame.keyValuePairs.containsKey("WAIT")) {
             System.out.println(new String(responseFrame.keyValuePairs.get("WAIT")));
-            responseFrame = demultiplexer.receive(Request.AUTH);
+            responseFrame = demultiplexer.receive(id);
         }
 
         if (responseFrame.keyValuePairs.containsKey("ERROR")) {
@@ -186,9 +640,67 @@ public class Client implements AutoCloseable {
         }
 
         this.username = username;
+        keepSession(responseFrame);
+        return true;
+    }
+
+    /**
+     * Logs in by resuming a session opened by an earlier connection, with the
+     * token it was given, instead of authenticating again. The session must not
+     * have been logged out, and its connection must have been lost for no
+     * longer than its lease.
+     *
+     * @param token The token of the session, as returned by
+     *              {@link #getSessionToken}
+     * @return True if the session was resumed
+     * @throws IOException          If an I/O error occurs or the session has
+     *                              expired
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public boolean resume(String token) throws IOException, InterruptedException {
+        int id = demultiplexer.send(Request.RESUME,
+                Collections.singletonMap(Request.TOKEN, token.getBytes(StandardCharsets.UTF_8)));
+        Frame responseFrame = demultiplexer.receive(id);
+
+        if (responseFrame.keyValuePairs.containsKey("ERROR")) {
+            throw new IOException(new String(responseFrame.keyValuePairs.get("ERROR")));
+        }
+
+        // The first pair of the reply names the user
+        this.username = responseFrame.keyValuePairs.keySet().iterator().next();
+        keepSession(responseFrame);
         return true;
     }
 
+    /**
+     * Keeps the token and lease of a login reply.
+     */
+    private void keepSession(Frame responseFrame) {
+        byte[] token = responseFrame.keyValuePairs.get(Request.TOKEN);
+        byte[] lease = responseFrame.keyValuePairs.get(Request.LEASE);
+        this.sessionToken = token != null ? new String(token, StandardCharsets.UTF_8) : null;
+        this.leaseMillis = lease != null ? ByteBuffer.wrap(lease).getLong() : 0;
+    }
+
+    /**
+     * Returns the token of the session, to resume it from a new connection if
+     * this one is lost.
+     *
+     * @return The token, or null if not logged in
+     */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Returns how long the session can be resumed once the connection is lost.
+     *
+     * @return The lease in milliseconds, 0 if the session cannot be resumed
+     */
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
     /**
      * Logs out the current user.
      *
@@ -199,9 +711,10 @@ public class Client implements AutoCloseable {
         if (username != null) {
             Map<String, byte[]> request = new HashMap<>();
             request.put(username, new byte[0]);
-            demultiplexer.send(new Frame(Request.LOGOUT, request));
-            demultiplexer.receive(Request.LOGOUT);
+            int id = demultiplexer.send(Request.LOGOUT, request);
+            demultiplexer.receive(id);
             this.username = null;
+            this.sessionToken = null;
         }
     }
 
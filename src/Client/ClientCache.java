@@ -0,0 +1,98 @@
+package Client;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ClientCache class that keeps the most recently read values of a client, up to
+ * a fixed number of keys, evicting the least recently used ones.
+ * <p>
+ * The server pushes an invalidation whenever a cached key is written. A read
+ * that was sent before an invalidation arrived may return the old value, so
+ * every invalidation bumps an epoch and a value is only cached if no
+ * invalidation arrived since its read was sent.
+ */
+class ClientCache {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, byte[]> values;
+    private long epoch = 0;
+
+    /**
+     * Constructs a new ClientCache.
+     *
+     * @param capacity The maximum number of cached keys
+     */
+    ClientCache(int capacity) {
+        this.values = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the current epoch, to be taken before sending a read.
+     *
+     * @return The epoch
+     */
+    long epoch() {
+        lock.lock();
+        try {
+            return epoch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the cached value of a key.
+     *
+     * @param key The key
+     * @return The value, or null if the key is not cached
+     */
+    byte[] get(String key) {
+        lock.lock();
+        try {
+            return values.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Caches the values returned by a read, unless an invalidation arrived since
+     * it was sent.
+     *
+     * @param read  The values read
+     * @param epoch The epoch taken before sending the read
+     */
+    void fill(Map<String, byte[]> read, long epoch) {
+        lock.lock();
+        try {
+            if (this.epoch == epoch) {
+                values.putAll(read);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the cached values of keys that were written.
+     *
+     * @param keys The written keys
+     */
+    void invalidate(Collection<String> keys) {
+        lock.lock();
+        try {
+            epoch++;
+            values.keySet().removeAll(keys);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package Client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * ClusterClient class that spreads the keyspace over several server nodes.
+ * <p>
+ * Each key belongs to one node, chosen by a consistent-hash ring with virtual
+ * nodes, and the client keeps one connection, with its own demultiplexer, per
+ * node. Multi-key operations are split into one request per node, sent in
+ * parallel, and their replies merged. Users are registered and authenticated on
+ * every node, and an operation is only atomic within a single node.
+ */
+public class ClusterClient implements AutoCloseable {
+
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final Client[] nodes;
+    private final HashRing ring;
+
+    /**
+     * Constructs a new ClusterClient and connects to every node.
+     *
+     * @param addresses The addresses of the nodes, as {@code host:port}
+     * @throws IOException If an I/O error occurs
+     */
+    public ClusterClient(List<String> addresses) throws IOException {
+        this(addresses, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Constructs a new ClusterClient and connects to every node.
+     *
+     * @param addresses    The addresses of the nodes, as {@code host:port}
+     * @param virtualNodes The number of points of each node on the ring
+     * @throws IOException If an I/O error occurs
+     */
+    public ClusterClient(List<String> addresses, int virtualNodes) throws IOException {
+        this.nodes = new Client[addresses.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            String address = addresses.get(i);
+            int colon = address.lastIndexOf(':');
+            nodes[i] = new Client(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
+        this.ring = new HashRing(addresses.toArray(new String[0]), virtualNodes);
+    }
+
+    /**
+     * Registers a new user on every node.
+     *
+     * @param username The username
+     * @param password The password
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void register(String username, String password) throws IOException, InterruptedException {
+        for (Client node : nodes) {
+            node.register(username, password);
+        }
+    }
+
+    /**
+     * Authenticates a user on every node.
+     *
+     * @param username The username
+     * @param password The password
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void authenticate(String username, String password) throws IOException, InterruptedException {
+        for (Client node : nodes) {
+            node.authenticate(username, password);
+        }
+    }
+
+    /**
+     * Sends a PUT request to the node of the key.
+     *
+     * @param key   The key to store
+     * @param value The value to store
+     * @throws IOException          If an I/O error occurs or the node refuses the write
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void put(String key, byte[] value) throws IOException, InterruptedException {
+        nodeOf(key).put(key, value);
+    }
+
+    /**
+     * Sends a GET request to the node of the key.
+     *
+     * @param key The key to retrieve
+     * @return The value associated with the key
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public byte[] get(String key) throws IOException, InterruptedException {
+        return nodeOf(key).get(key);
+    }
+
+    /**
+     * Sends a multi-put request to every node that owns some of the keys, in
+     * parallel.
+     *
+     * @param pairs The key-value pairs to store
+     * @throws IOException          If an I/O error occurs or a node refuses the write
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void multiPut(Map<String, byte[]> pairs) throws IOException, InterruptedException {
+        await(multiPutAsync(pairs));
+    }
+
+    /**
+     * Sends a multi-get request to every node that owns some of the keys, in
+     * parallel.
+     *
+     * @param keys The keys to retrieve
+     * @return The key-value pairs retrieved from the nodes
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException, InterruptedException {
+        return await(multiGetAsync(keys));
+    }
+
+    /**
+     * Sends a multi-put request to every node that owns some of the keys, without
+     * waiting for the replies.
+     *
+     * @param pairs The key-value pairs to store
+     * @return A future completed once every node has stored its values
+     */
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs) {
+        Map<Integer, Map<String, byte[]>> split = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            split.computeIfAbsent(ring.nodeOf(entry.getKey()), n -> new HashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Map.Entry<Integer, Map<String, byte[]>> entry : split.entrySet()) {
+            futures.add(nodes[entry.getKey()].multiPutAsync(entry.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Sends a multi-get request to every node that owns some of the keys, without
+     * waiting for the replies.
+     *
+     * @param keys The keys to retrieve
+     * @return A future completed with the key-value pairs of every node
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) {
+        Map<Integer, Set<String>> split = new HashMap<>();
+        for (String key : keys) {
+            split.computeIfAbsent(ring.nodeOf(key), n -> new HashSet<>()).add(key);
+        }
+        List<CompletableFuture<Map<String, byte[]>>> futures = new ArrayList<>();
+        for (Map.Entry<Integer, Set<String>> entry : split.entrySet()) {
+            futures.add(nodes[entry.getKey()].multiGetAsync(entry.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            Map<String, byte[]> results = new HashMap<>();
+            for (CompletableFuture<Map<String, byte[]>> future : futures) {
+                results.putAll(future.join());
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Sends a get-when request without waiting for the reply. If the two keys
+     * belong to different nodes, the condition is waited for on the node of the
+     * condition key and the value is then read from the node of the requested
+     * key, so it may already have changed again.
+     *
+     * @param key       The key to retrieve
+     * @param keyCond   The condition key
+     * @param valueCond The condition value
+     * @return A future completed with the value of the key once the condition
+     *         holds
+     */
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
+        Client node = nodeOf(key);
+        Client condNode = nodeOf(keyCond);
+        if (node == condNode) {
+            return node.getWhenAsync(key, keyCond, valueCond);
+        }
+        return condNode.getWhenAsync(keyCond, keyCond, valueCond).thenCompose(v -> node.getAsync(key));
+    }
+
+    /**
+     * Logs out the current user from every node.
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void logout() throws IOException, InterruptedException {
+        for (Client node : nodes) {
+            node.logout();
+        }
+    }
+
+    /**
+     * Closes the connections to every node, logging out first. An interrupt is
+     * kept on the thread and reported as an I/O error, so that the client can be
+     * used in a try-with-resources statement.
+     *
+     * @throws IOException If an I/O error occurs or the thread is interrupted
+     */
+    @Override
+    public void close() throws IOException {
+        for (Client node : nodes) {
+            try {
+                node.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing the cluster client");
+            }
+        }
+    }
+
+    private Client nodeOf(String key) {
+        return nodes[ring.nodeOf(key)];
+    }
+
+    /**
+     * Waits for a future, rethrowing the I/O error it failed with.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package Client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HashRing class that maps keys to nodes by consistent hashing.
+ * <p>
+ * Every node is placed on the ring at several points, its virtual nodes, and a
+ * key belongs to the first point at or after its hash. Adding or removing a node
+ * only moves the keys next to its points, and the virtual nodes spread them
+ * evenly over the other nodes.
+ */
+class HashRing {
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    /**
+     * Constructs a new HashRing.
+     *
+     * @param nodes        The names of the nodes, in the order of their indexes
+     * @param virtualNodes The number of points of each node on the ring
+     */
+    HashRing(String[] nodes, int virtualNodes) {
+        for (int i = 0; i < nodes.length; i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                ring.put(hash(nodes[i] + "#" + v), i);
+            }
+        }
+    }
+
+    /**
+     * Returns the node a key belongs to.
+     *
+     * @param key The key
+     * @return The index of the node
+     */
+    int nodeOf(String key) {
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Hashes a string with 64-bit FNV-1a, followed by a final mix so that
+     * similar strings land far apart on the ring.
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,37 @@
+package Client;
+
+import Common.Versioned;
+
+/**
+ * Outcome class that is the result of a conditional write, with the value and
+ * version the key holds after it.
+ * <p>
+ * When the write was not applied, they are the value and version that made the
+ * condition fail, so the caller can decide how to retry without reading the key
+ * again.
+ */
+public class Outcome extends Versioned {
+
+    private final boolean applied;
+
+    /**
+     * Constructs a new Outcome.
+     *
+     * @param applied Whether the value was written
+     * @param value   The value of the key, or null if it does not exist
+     * @param version The version of the value
+     */
+    Outcome(boolean applied, byte[] value, long version) {
+        super(value, version);
+        this.applied = applied;
+    }
+
+    /**
+     * Returns whether the value was written.
+     *
+     * @return True if the condition held and the value was written
+     */
+    public boolean isApplied() {
+        return applied;
+    }
+}
@@ -0,0 +1,52 @@
+package Client;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * ScanPage class that holds one page of the pairs returned by a scan, in key
+ * order, and the token to fetch the next page with.
+ */
+public class ScanPage {
+
+    private final Map<String, byte[]> pairs;
+    private final String next;
+
+    /**
+     * Constructs a new ScanPage.
+     *
+     * @param pairs The key-value pairs of the page, in key order
+     * @param next  The continuation token, or null if the scan is complete
+     */
+    ScanPage(Map<String, byte[]> pairs, String next) {
+        this.pairs = Collections.unmodifiableMap(pairs);
+        this.next = next;
+    }
+
+    /**
+     * Returns the key-value pairs of the page.
+     *
+     * @return The pairs, in key order
+     */
+    public Map<String, byte[]> getPairs() {
+        return pairs;
+    }
+
+    /**
+     * Returns the token to pass to the next scan to continue after this page.
+     *
+     * @return The continuation token, or null if there are no more pairs
+     */
+    public String getNext() {
+        return next;
+    }
+
+    /**
+     * Returns whether there are more pairs after this page.
+     *
+     * @return True if the scan can be continued
+     */
+    public boolean hasNext() {
+        return next != null;
+    }
+}
@@ -0,0 +1,125 @@
+package Common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression class that compresses the values of the frames sent over a
+ * connection with the DEFLATE codec of the JDK.
+ * <p>
+ * Only values of at least the threshold size are compressed, since small values
+ * would cost more CPU than the bytes they save, and a value is sent as is when
+ * compressing it does not make it smaller. Compressed values are flagged in the
+ * high bit of their length, so every frame can be decoded whether or not the
+ * connection compresses. Deflaters and inflaters are kept per thread, as they
+ * are expensive to create and not thread-safe.
+ * <p>
+ * The original length of a compressed value comes from the peer, so it is
+ * checked before anything is allocated: it may neither exceed the largest value
+ * that is ever compressed nor what DEFLATE can expand the compressed bytes to.
+ */
+public class Compression {
+
+    /**
+     * The name of the codec, as negotiated in the HELLO handshake.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * The largest value that is compressed, and so the largest original length
+     * accepted for a compressed value.
+     */
+    public static final int MAX_LENGTH = Integer.getInteger("compression.maxLength", 64 << 20);
+
+    // DEFLATE cannot expand its input more than about 1032 times
+    private static final long MAX_RATIO = 1032;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final int threshold;
+
+    /**
+     * Constructs a new Compression.
+     *
+     * @param threshold The size from which values are compressed
+     */
+    public Compression(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the size from which values are compressed.
+     *
+     * @return The threshold in bytes
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Compresses a value if it is large enough and compresses well.
+     *
+     * @param value The value
+     * @return The compressed bytes, or null if the value should be sent as is
+     */
+    public byte[] compress(byte[] value) {
+        if (value.length < threshold || value.length > MAX_LENGTH) {
+            return null;
+        }
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        // Anything that does not save at least an eighth is not worth inflating
+        byte[] out = new byte[value.length - value.length / 8];
+        int n = 0;
+        while (!deflater.finished() && n < out.length) {
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return deflater.finished() ? Arrays.copyOf(out, n) : null;
+    }
+
+    /**
+     * Decompresses a value.
+     *
+     * @param compressed The compressed bytes
+     * @param length     The length of the original value
+     * @return The original value
+     * @throws IOException If the length is out of bounds or the bytes are not a
+     *                     valid compressed value of exactly that length
+     */
+    public static byte[] decompress(byte[] compressed, int length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH || length > compressed.length * MAX_RATIO + 64) {
+            throw new IOException("Malformed frame: bad compressed value length " + length);
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] value = new byte[length];
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(value, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != length) {
+                throw new IOException("Malformed frame: compressed value is truncated");
+            }
+            // The stream must end right after the original length
+            if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                throw new IOException("Malformed frame: compressed value is too long");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed frame: bad compressed value", e);
+        }
+        return value;
+    }
+}
@@ -2,18 +2,43 @@ package Common;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Connection class that handles sending and receiving frames over a socket.
+ * <p>
+ * Once both ends agree on it, the values of the frames sent can be compressed,
+ * see {@link #setCompression}. Compressed values are always accepted on receive.
+ * <p>
+ * By default a frame is written and flushed by the thread that sends it. Once
+ * {@link #startWriter} is called, frames are instead encoded by the sending
+ * thread and queued, and a writer thread drains every frame queued so far with
+ * a single flush, so that senders never block on the socket. The queue is
+ * bounded in bytes: a peer that reads too slowly to keep it under the limit is
+ * disconnected.
  */
-public class Connection implements AutoCloseable {
+public class Connection implements Endpoint {
 
+    private final Socket socket;
     private final DataInputStream dis;
     private final DataOutputStream dos;
     private final Lock rl = new ReentrantLock();
     private final Lock wl = new ReentrantLock();
+    private final Lock ql = new ReentrantLock();
+    private final Condition pending = ql.newCondition();
+    private volatile Queue<ByteBuffer> outbound = null;
+    private long outboundBytes = 0;
+    private long outboundLimit = 0;
+    private boolean closed = false;
+    private volatile Compression compression = null;
 
     /**
      * Constructs a new Connection.
@@ -22,23 +47,146 @@ public class Connection implements AutoCloseable {
      * @throws IOException If an I/O error occurs
      */
     public Connection(Socket socket) throws IOException {
+        this.socket = socket;
         this.dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
         this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     }
 
     /**
-     * Sends a frame over the connection.
+     * Constructs a Connection for subclasses that provide their own transport and
+     * override {@link #send}, {@link #receive} and {@link #close}.
+     */
+    protected Connection() {
+        this.socket = null;
+        this.dis = null;
+        this.dos = null;
+    }
+
+    /**
+     * Sets the compression of the frames sent over the connection.
+     *
+     * @param compression The compression, or null to send values as is
+     */
+    @Override
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the compression of the frames sent over the connection.
+     *
+     * @return The compression, or null if values are sent as is
+     */
+    @Override
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Starts the writer of the connection, after which frames are queued by
+     * {@link #send} and written in batches by the writer.
+     *
+     * @param limit   The maximum bytes of queued frames, beyond which the peer is
+     *                disconnected as a slow consumer
+     * @param starter Starts the writer loop on a thread of its own
+     */
+    public void startWriter(long limit, Consumer<Runnable> starter) {
+        ql.lock();
+        try {
+            this.outboundLimit = limit;
+            this.outbound = new ArrayDeque<>();
+        } finally {
+            ql.unlock();
+        }
+        starter.accept(this::writeLoop);
+    }
+
+    /**
+     * Sends a frame over the connection. With a writer, the frame is only queued
+     * and this never blocks on the socket.
      *
      * @param frame The frame to send
-     * @throws IOException If an I/O error occurs
+     * @throws IOException If an I/O error occurs, the connection is closed or
+     *                     the peer was disconnected as a slow consumer
      */
+    @Override
     public void send(Frame frame) throws IOException {
-        wl.lock();
+        Queue<ByteBuffer> outbound = this.outbound;
+        if (outbound == null) {
+            wl.lock();
+            try {
+                frame.serialize(dos, compression);
+                dos.flush();
+            } finally {
+                wl.unlock();
+            }
+            return;
+        }
+
+        // Encoded by the sender, so the writer only copies bytes to the socket
+        ByteBuffer buf = frame.encode(false, compression);
+        ql.lock();
         try {
-            frame.serialize(dos);
-            dos.flush();
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            // A single frame larger than the limit is still let through on its own
+            if (outboundBytes == 0 || outboundBytes + buf.remaining() <= outboundLimit) {
+                outbound.add(buf);
+                outboundBytes += buf.remaining();
+                pending.signal();
+                return;
+            }
         } finally {
-            wl.unlock();
+            ql.unlock();
+        }
+        close();
+        throw new IOException("Slow consumer: more than " + outboundLimit + " bytes waiting to be sent");
+    }
+
+    /**
+     * Writes the queued frames until the connection is closed, every batch with a
+     * single flush.
+     */
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            while (true) {
+                ql.lock();
+                try {
+                    while (outbound.isEmpty() && !closed) {
+                        pending.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    batch.addAll(outbound);
+                    outbound.clear();
+                } finally {
+                    ql.unlock();
+                }
+                long bytes = 0;
+                for (ByteBuffer buf : batch) {
+                    dos.write(buf.array(), buf.position(), buf.remaining());
+                    bytes += buf.remaining();
+                }
+                dos.flush();
+                batch.clear();
+                // Frames count against the limit until they are written
+                ql.lock();
+                try {
+                    outboundBytes -= bytes;
+                } finally {
+                    ql.unlock();
+                }
+            }
+        } catch (IOException e) {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -64,7 +212,14 @@ public class Connection implements AutoCloseable {
      */
     @Override
     public void close() throws IOException {
-        dis.close();
-        dos.close();
+        ql.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            ql.unlock();
+        }
+        // Closing the socket does not wait for a write in progress, unlike the streams
+        socket.close();
     }
 }
\ No newline at end of file
@@ -2,26 +2,44 @@ package Common;
 
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Demultiplexer class that handles receiving frames and dispatching them to the
  * appropriate handlers.
+ * <p>
+ * Replies are matched to their requests by request id, so any number of threads
+ * can have requests outstanding on the same connection at once. A reply is
+ * either picked up by a thread blocked in {@link #receive} or completes a future
+ * returned by {@link #receiveAsync}, in which case the future's callbacks run on
+ * the reader thread.
+ * <p>
+ * Frames with id 0 are not replies but pushed by the server on its own, and are
+ * handed to the push handler on the reader thread, before any later reply is
+ * delivered.
  */
 public class Demultiplexer {
 
     private final Connection c;
     private final ReentrantLock l = new ReentrantLock();
     private final Map<Integer, FrameValue> map = new HashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
     private IOException exception = null;
+    private volatile Consumer<Frame> pushHandler = null;
 
     private class FrameValue {
         int waiters = 0;
         Queue<Frame> queue = new ArrayDeque<>();
+        Queue<CompletableFuture<Frame>> futures = new ArrayDeque<>();
         Condition c = l.newCondition();
 
         public FrameValue() {
@@ -45,25 +63,65 @@ public class Demultiplexer {
             try {
                 while (true) {
                     Frame frame = c.receive();
+                    Consumer<Frame> handler = pushHandler;
+                    if (frame.id == 0 && handler != null) {
+                        handler.accept(frame);
+                        continue;
+                    }
+                    CompletableFuture<Frame> future = null;
                     l.lock();
                     try {
-                        FrameValue fv = map.get(frame.tag);
+                        FrameValue fv = map.get(frame.id);
                         if (fv == null) {
                             fv = new FrameValue();
-                            map.put(frame.tag, fv);
+                            map.put(frame.id, fv);
+                        }
+                        if (!fv.futures.isEmpty()) {
+                            future = fv.futures.poll();
+                            if (fv.waiters == 0 && fv.futures.isEmpty() && fv.queue.isEmpty())
+                                map.remove(frame.id);
+                        } else {
+                            fv.queue.add(frame);
+                            fv.c.signal();
                         }
-                        fv.queue.add(frame);
-                        fv.c.signal();
                     } finally {
                         l.unlock();
                     }
+                    // Complete outside the lock, the callbacks may send new requests
+                    if (future != null) {
+                        future.complete(frame);
+                    }
                 }
             } catch (IOException e) {
-                exception = e;
+                List<CompletableFuture<Frame>> futures = new ArrayList<>();
+                l.lock();
+                try {
+                    exception = e;
+                    // Wake every waiting thread so that it sees the exception
+                    for (FrameValue fv : map.values()) {
+                        fv.c.signalAll();
+                        futures.addAll(fv.futures);
+                        fv.futures.clear();
+                    }
+                } finally {
+                    l.unlock();
+                }
+                for (CompletableFuture<Frame> future : futures) {
+                    future.completeExceptionally(e);
+                }
             }
         }).start();
     }
 
+    /**
+     * Sets the handler of the frames pushed by the server.
+     *
+     * @param handler The handler, called on the reader thread
+     */
+    public void onPush(Consumer<Frame> handler) {
+        this.pushHandler = handler;
+    }
+
     /**
      * Sends a frame over the connection.
      *
@@ -75,29 +133,76 @@ public class Demultiplexer {
     }
 
     /**
-     * Receives a frame with the specified tag.
+     * Sends a request over the connection under a new request id.
+     *
+     * @param tag           The tag of the request
+     * @param keyValuePairs The key-value pairs of the request
+     * @return The id of the request, to be passed to {@link #receive}
+     * @throws IOException If an I/O error occurs
+     */
+    public int send(int tag, Map<String, byte[]> keyValuePairs) throws IOException {
+        int id = newId();
+        c.send(new Frame(tag, id, keyValuePairs));
+        return id;
+    }
+
+    /**
+     * Sends a request over the connection under a new request id, without
+     * waiting for its reply.
+     *
+     * @param tag           The tag of the request
+     * @param keyValuePairs The key-value pairs of the request
+     * @return A future completed with the reply, or exceptionally if the
+     *         connection fails
+     */
+    public CompletableFuture<Frame> sendAsync(int tag, Map<String, byte[]> keyValuePairs) {
+        int id = newId();
+        CompletableFuture<Frame> future = receiveAsync(id);
+        try {
+            c.send(new Frame(tag, id, keyValuePairs));
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Returns a new request id, never 0.
      *
-     * @param tag The tag of the frame to receive
+     * @return The request id
+     */
+    public int newId() {
+        int id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Receives the next reply to the request with the specified id.
+     *
+     * @param id The id of the request
      * @return The received frame
      * @throws IOException          If an I/O error occurs
      * @throws InterruptedException If the thread is interrupted
      */
-    public Frame receive(int tag) throws IOException, InterruptedException {
+    public Frame receive(int id) throws IOException, InterruptedException {
         l.lock();
         FrameValue fv;
         try {
-            fv = map.get(tag);
+            fv = map.get(id);
             if (fv == null) {
                 fv = new FrameValue();
-                map.put(tag, fv);
+                map.put(id, fv);
             }
             fv.waiters++;
             while (true) {
                 if (!fv.queue.isEmpty()) {
                     fv.waiters--;
                     Frame reply = fv.queue.poll();
-                    if (fv.waiters == 0 && fv.queue.isEmpty())
-                        map.remove(tag);
+                    if (fv.waiters == 0 && fv.futures.isEmpty() && fv.queue.isEmpty())
+                        map.remove(id);
                     return reply;
                 }
                 if (exception != null) {
@@ -110,6 +215,39 @@ public class Demultiplexer {
         }
     }
 
+    /**
+     * Receives the next reply to the request with the specified id without
+     * blocking.
+     *
+     * @param id The id of the request
+     * @return A future completed with the reply, or exceptionally if the
+     *         connection fails
+     */
+    public CompletableFuture<Frame> receiveAsync(int id) {
+        l.lock();
+        try {
+            FrameValue fv = map.get(id);
+            if (fv == null) {
+                fv = new FrameValue();
+                map.put(id, fv);
+            }
+            if (!fv.queue.isEmpty()) {
+                Frame reply = fv.queue.poll();
+                if (fv.waiters == 0 && fv.futures.isEmpty() && fv.queue.isEmpty())
+                    map.remove(id);
+                return CompletableFuture.completedFuture(reply);
+            }
+            if (exception != null) {
+                return CompletableFuture.failedFuture(exception);
+            }
+            CompletableFuture<Frame> future = new CompletableFuture<>();
+            fv.futures.add(future);
+            return future;
+        } finally {
+            l.unlock();
+        }
+    }
+
     /**
      * Closes the demultiplexer and the underlying connection.
      *
@@ -0,0 +1,40 @@
+package Common;
+
+import java.io.IOException;
+
+/**
+ * Endpoint interface that is the server end of a client connection, the side
+ * replies are sent through, whichever transport receives the requests.
+ */
+public interface Endpoint extends AutoCloseable {
+
+    /**
+     * Sends a frame to the client.
+     *
+     * @param frame The frame to send
+     * @throws IOException If an I/O error occurs or the connection is closed
+     */
+    void send(Frame frame) throws IOException;
+
+    /**
+     * Sets the compression of the frames sent to the client.
+     *
+     * @param compression The compression, or null to send values as is
+     */
+    void setCompression(Compression compression);
+
+    /**
+     * Returns the compression of the frames sent to the client.
+     *
+     * @return The compression, or null if values are sent as is
+     */
+    Compression getCompression();
+
+    /**
+     * Closes the connection.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -3,27 +3,173 @@ package Common;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Frame class that represents a frame of data to be sent or received.
+ * <p>
+ * Every request carries an id chosen by the client, which the server copies into
+ * its reply so that many requests can be outstanding on the same connection.
+ * Frames that are not part of a request carry the id 0.
+ * <p>
+ * On the wire a frame is its length followed by the tag, the id, the number of
+ * pairs and then every pair as a UTF-8 key with a 16-bit length and a value with
+ * a 32-bit length. The length prefix lets a frame be encoded into a single
+ * buffer and decoded from a partially received one without walking its pairs.
+ * Pairs keep the order in which they were put in the frame.
+ * <p>
+ * A value compressed by the {@link Compression} of a connection has the high
+ * bit of its length set, and its length is followed by the length of the
+ * original value.
  */
 public class Frame {
 
+    private static final int HEADER_LENGTH = 16;
+    private static final int COMPRESSED = 0x80000000;
+
     public final int tag;
+    public final int id;
     public final Map<String, byte[]> keyValuePairs;
 
     /**
-     * Constructs a new Frame.
+     * Constructs a new Frame with no request id.
      *
      * @param tag           The tag of the frame
      * @param keyValuePairs The key-value pairs in the frame
      */
     public Frame(int tag, Map<String, byte[]> keyValuePairs) {
+        this(tag, 0, keyValuePairs);
+    }
+
+    /**
+     * Constructs a new Frame.
+     *
+     * @param tag           The tag of the frame
+     * @param id            The id of the request the frame belongs to
+     * @param keyValuePairs The key-value pairs in the frame
+     */
+    public Frame(int tag, int id, Map<String, byte[]> keyValuePairs) {
+        this(tag, id, new LinkedHashMap<>(keyValuePairs));
+    }
+
+    /**
+     * Constructs a Frame that takes ownership of the given map without copying
+     * it, for maps built by the frame itself and never seen by the caller.
+     */
+    private Frame(int tag, int id, LinkedHashMap<String, byte[]> keyValuePairs) {
         this.tag = tag;
-        this.keyValuePairs = Collections.unmodifiableMap(new HashMap<>(keyValuePairs));
+        this.id = id;
+        this.keyValuePairs = Collections.unmodifiableMap(keyValuePairs);
+    }
+
+    /**
+     * Creates the reply to this frame, with the same tag and request id.
+     *
+     * @param keyValuePairs The key-value pairs of the reply
+     * @return The reply frame
+     */
+    public Frame reply(Map<String, byte[]> keyValuePairs) {
+        return new Frame(tag, id, keyValuePairs);
+    }
+
+    /**
+     * Returns the number of bytes of the encoded frame, including its length
+     * prefix.
+     *
+     * @return The encoded length
+     */
+    public int encodedLength() {
+        long length = HEADER_LENGTH;
+        for (Map.Entry<String, byte[]> entry : keyValuePairs.entrySet()) {
+            length += 2 + utf8Length(entry.getKey()) + 4 + entry.getValue().length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Frame too large: " + length + " bytes");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Encodes the frame into a buffer.
+     *
+     * @param buf The buffer to encode into, with at least
+     *            {@link #encodedLength()} bytes remaining
+     */
+    public void encode(ByteBuffer buf) {
+        encode(buf, null);
+    }
+
+    private void encode(ByteBuffer buf, byte[][] compressed) {
+        int start = buf.position();
+        buf.putInt(0);
+        buf.putInt(tag);
+        buf.putInt(id);
+        buf.putInt(keyValuePairs.size());
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : keyValuePairs.entrySet()) {
+            putKey(buf, entry.getKey());
+            byte[] value = compressed != null && compressed[i] != null ? compressed[i] : null;
+            if (value != null) {
+                buf.putInt(value.length | COMPRESSED);
+                buf.putInt(entry.getValue().length);
+                buf.put(value);
+            } else {
+                buf.putInt(entry.getValue().length);
+                buf.put(entry.getValue());
+            }
+            i++;
+        }
+        buf.putInt(start, buf.position() - start - 4);
+    }
+
+    /**
+     * Encodes the frame into a new buffer of the exact size.
+     *
+     * @param direct Whether to allocate a direct buffer
+     * @return The buffer, ready to be written
+     */
+    public ByteBuffer encode(boolean direct) {
+        int length = encodedLength();
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        encode(buf);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Encodes the frame into a new buffer of the exact size, compressing the
+     * values that are worth it.
+     *
+     * @param direct      Whether to allocate a direct buffer
+     * @param compression The compression of the connection, or null to send every
+     *                    value as is
+     * @return The buffer, ready to be written
+     */
+    public ByteBuffer encode(boolean direct, Compression compression) {
+        if (compression == null) {
+            return encode(direct);
+        }
+        byte[][] compressed = new byte[keyValuePairs.size()][];
+        long length = HEADER_LENGTH;
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : keyValuePairs.entrySet()) {
+            compressed[i] = compression.compress(entry.getValue());
+            length += 2 + utf8Length(entry.getKey()) + 4
+                    + (compressed[i] != null ? 4 + compressed[i].length : entry.getValue().length);
+            i++;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Frame too large: " + length + " bytes");
+        }
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+        encode(buf, compressed);
+        buf.flip();
+        return buf;
     }
 
     /**
@@ -33,34 +179,195 @@ public class Frame {
      * @throws IOException If an I/O error occurs
      */
     public void serialize(DataOutputStream out) throws IOException {
-        out.writeInt(tag);
-        out.writeInt(keyValuePairs.size());
-        for (Map.Entry<String, byte[]> entry : keyValuePairs.entrySet()) {
-            out.writeUTF(entry.getKey());
-            out.writeInt(entry.getValue().length);
-            out.write(entry.getValue());
-        }
+        serialize(out, null);
+    }
+
+    /**
+     * Serializes the frame to a DataOutputStream, compressing the values that are
+     * worth it.
+     *
+     * @param out         The DataOutputStream to serialize to
+     * @param compression The compression of the connection, or null to send every
+     *                    value as is
+     * @throws IOException If an I/O error occurs
+     */
+    public void serialize(DataOutputStream out, Compression compression) throws IOException {
+        ByteBuffer buf = encode(false, compression);
+        out.write(buf.array(), 0, buf.limit());
     }
 
     /**
-     * Deserializes a frame from a DataInputStream.
+     * Deserializes a frame from a DataInputStream. Each value is read straight
+     * into its own array, once its length is checked against the rest of the
+     * frame.
      *
      * @param in The DataInputStream to deserialize from
      * @return The deserialized frame
      * @throws IOException If an I/O error occurs
      */
     public static Frame deserialize(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_LENGTH - 4) {
+            throw new IOException("Malformed frame: length " + length);
+        }
         int tag = in.readInt();
+        int id = in.readInt();
         int mapSize = in.readInt();
-        Map<String, byte[]> keyValuePairs = new HashMap<>();
+        if (mapSize < 0) {
+            throw new IOException("Malformed frame: negative size");
+        }
+        LinkedHashMap<String, byte[]> keyValuePairs = new LinkedHashMap<>();
+        byte[] keyBytes = new byte[64];
+        // The bytes of the frame not read yet, past the header
+        long remaining = length - (HEADER_LENGTH - 4);
         for (int i = 0; i < mapSize; i++) {
-            String key = in.readUTF();
+            int keyLength = in.readUnsignedShort();
+            remaining -= 2 + keyLength + 4;
+            if (remaining < 0) {
+                throw new IOException("Malformed frame: bad key length " + keyLength);
+            }
+            if (keyLength > keyBytes.length) {
+                keyBytes = new byte[keyLength];
+            }
+            in.readFully(keyBytes, 0, keyLength);
             int valueLength = in.readInt();
-            byte[] value = new byte[valueLength];
-            in.readFully(value);
-            keyValuePairs.put(key, value);
+            byte[] value;
+            if ((valueLength & COMPRESSED) != 0) {
+                int originalLength = in.readInt();
+                if (originalLength < 0) {
+                    throw new IOException("Malformed frame: negative value length");
+                }
+                valueLength &= ~COMPRESSED;
+                remaining -= 4 + valueLength;
+                if (remaining < 0) {
+                    throw new IOException("Malformed frame: bad value length " + valueLength);
+                }
+                byte[] compressed = new byte[valueLength];
+                in.readFully(compressed);
+                value = Compression.decompress(compressed, originalLength);
+            } else {
+                remaining -= valueLength;
+                if (remaining < 0) {
+                    throw new IOException("Malformed frame: bad value length " + valueLength);
+                }
+                value = new byte[valueLength];
+                in.readFully(value);
+            }
+            keyValuePairs.put(new String(keyBytes, 0, keyLength, StandardCharsets.UTF_8), value);
+        }
+        if (remaining != 0) {
+            throw new IOException("Malformed frame: length mismatch");
+        }
+        return new Frame(tag, id, keyValuePairs);
+    }
+
+    /**
+     * Decodes a frame from a buffer that may hold only part of it. If the buffer
+     * holds a complete frame, it is consumed and returned. Otherwise the buffer
+     * is left untouched and null is returned.
+     * <p>
+     * Keys are decoded in place and each value is copied once, straight from the
+     * buffer into its own array, since values outlive the buffer in the store.
+     *
+     * @param buf The buffer to decode from, in read mode
+     * @return The decoded frame, or null if the frame is not complete yet
+     * @throws IOException If the buffer holds a malformed frame
+     */
+    public static Frame decode(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        if (buf.remaining() < 4) {
+            return null;
+        }
+        int length = buf.getInt(start);
+        if (length < HEADER_LENGTH - 4) {
+            throw new IOException("Malformed frame: length " + length);
+        }
+        if (buf.remaining() - 4 < length) {
+            return null;
+        }
+        int end = start + 4 + length;
+        try {
+            buf.position(start + 4);
+            int tag = buf.getInt();
+            int id = buf.getInt();
+            int mapSize = buf.getInt();
+            if (mapSize < 0) {
+                throw new IOException("Malformed frame: negative size");
+            }
+            LinkedHashMap<String, byte[]> keyValuePairs = new LinkedHashMap<>();
+            for (int i = 0; i < mapSize; i++) {
+                String key = getKey(buf, end);
+                int valueLength = buf.getInt();
+                int originalLength = -1;
+                if ((valueLength & COMPRESSED) != 0) {
+                    valueLength &= ~COMPRESSED;
+                    originalLength = buf.getInt();
+                    if (originalLength < 0) {
+                        throw new IOException("Malformed frame: negative value length");
+                    }
+                }
+                if (valueLength > end - buf.position()) {
+                    throw new IOException("Malformed frame: bad value length " + valueLength);
+                }
+                byte[] value = new byte[valueLength];
+                buf.get(value);
+                keyValuePairs.put(key, originalLength < 0 ? value : Compression.decompress(value, originalLength));
+            }
+            if (buf.position() != end) {
+                throw new IOException("Malformed frame: length mismatch");
+            }
+            return new Frame(tag, id, keyValuePairs);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed frame: truncated", e);
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            if (s.charAt(i) >= 0x80) {
+                return s.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return n;
+    }
+
+    private static void putKey(ByteBuffer buf, String key) {
+        int n = key.length();
+        if (utf8Length(key) == n) {
+            if (n > 0xFFFF) {
+                throw new IllegalArgumentException("Key too long: " + n + " bytes");
+            }
+            // ASCII keys are written without an intermediate array
+            buf.putShort((short) n);
+            for (int i = 0; i < n; i++) {
+                buf.put((byte) key.charAt(i));
+            }
+        } else {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Key too long: " + bytes.length + " bytes");
+            }
+            buf.putShort((short) bytes.length);
+            buf.put(bytes);
+        }
+    }
+
+    private static String getKey(ByteBuffer buf, int end) throws IOException {
+        int keyLength = buf.getShort() & 0xFFFF;
+        if (keyLength > end - buf.position()) {
+            throw new IOException("Malformed frame: bad key length " + keyLength);
+        }
+        String key;
+        if (buf.hasArray()) {
+            key = new String(buf.array(), buf.arrayOffset() + buf.position(), keyLength, StandardCharsets.UTF_8);
+            buf.position(buf.position() + keyLength);
+        } else {
+            byte[] bytes = new byte[keyLength];
+            buf.get(bytes);
+            key = new String(bytes, StandardCharsets.UTF_8);
         }
-        return new Frame(tag, keyValuePairs);
+        return key;
     }
 
     /**
@@ -71,7 +378,7 @@ public class Frame {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("Frame{tag=").append(tag).append(", keyValuePairs={");
+        sb.append("Frame{tag=").append(tag).append(", id=").append(id).append(", keyValuePairs={");
         for (Map.Entry<String, byte[]> entry : keyValuePairs.entrySet()) {
             sb.append(entry.getKey()).append("=");
             sb.append(new String(entry.getValue())).append(", ");
@@ -79,4 +386,4 @@ public class Frame {
         sb.append("}}");
         return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,143 @@
+package Common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram class that records latencies in microseconds with a bounded
+ * relative error, in the style of HdrHistogram.
+ * <p>
+ * Values below 128 get a bucket each. Above that, every power of two is split
+ * into 64 buckets, so a recorded value is off by less than 1.6% whatever its
+ * magnitude, and the histogram has a fixed size up to several weeks. Buckets
+ * are atomic counters, so any thread can record into the same histogram.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int MAX_SHIFT = 34;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * HALF_COUNT);
+
+    /**
+     * Records a latency.
+     *
+     * @param micros The latency in microseconds
+     */
+    public void record(long micros) {
+        counts.incrementAndGet(bucketOf(Math.max(0, micros)));
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     *
+     * @param other The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long n = other.counts.get(i);
+            if (n > 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+    }
+
+    /**
+     * Clears the histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return The count
+     */
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return The mean in microseconds, or 0 if the histogram is empty
+     */
+    public double mean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long n = counts.get(i);
+            total += n;
+            sum += (double) n * (lowestOf(i) + highestOf(i)) / 2;
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * Returns the value at a percentile.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The highest value equivalent to the one at the percentile, in
+     *         microseconds, or 0 if the histogram is empty
+     */
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestOf(i);
+            }
+        }
+        return highestOf(counts.length() - 1);
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return The highest value equivalent to the maximum, in microseconds
+     */
+    public long max() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return highestOf(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = Math.min(MAX_SHIFT, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return shift * HALF_COUNT + (int) Math.min(SUB_COUNT - 1, value >>> shift);
+    }
+
+    private static long lowestOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / HALF_COUNT - 1;
+        return (long) (bucket - shift * HALF_COUNT) << shift;
+    }
+
+    private static long highestOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        return lowestOf(bucket) + (1L << (bucket / HALF_COUNT - 1)) - 1;
+    }
+}
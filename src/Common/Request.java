@@ -12,4 +12,83 @@ public class Request {
     public static final int MULTI_GET = 6;
     public static final int GET_WHEN = 7;
     public static final int LOGOUT = 8;
+    public static final int CACHE = 9;
+    public static final int INVALIDATE = 10;
+    public static final int REPLICATE = 11;
+    public static final int PROMOTE = 12;
+    public static final int STATS = 13;
+    public static final int HELLO = 14;
+    public static final int SCAN = 15;
+    public static final int CAS = 16;
+    public static final int INCR = 17;
+    public static final int PUT_IF_ABSENT = 18;
+    public static final int RESUME = 19;
+
+    /**
+     * The prefix of the keys reserved for the pairs of the protocol and of the
+     * journal, which clients cannot write.
+     */
+    public static final String RESERVED = "\u0000";
+
+    /**
+     * The key of the pair that ends the reply to a SCAN request. Its value is the
+     * continuation token of the next page, empty if the scan is complete.
+     */
+    public static final String SCAN_NEXT = "\u0000next";
+
+    /**
+     * The key of the pair that ends the reply to a GET request. Its value holds
+     * the version of every key of the reply, in order, as 8-byte numbers.
+     */
+    public static final String VERSIONS = "\u0000versions";
+
+    /**
+     * The key of the pair that ends a PUT request whose keys expire. Its value
+     * holds the time to live of every key of the request, in order, as 8-byte
+     * numbers of milliseconds, 0 for the keys that do not expire.
+     */
+    public static final String TTLS = "\u0000ttls";
+
+    /**
+     * The key of the pair of a login reply, and of a RESUME request, that holds
+     * the token of the session.
+     */
+    public static final String TOKEN = "\u0000token";
+
+    /**
+     * The key of the pair of a login reply that holds, as an 8-byte number of
+     * milliseconds, how long the session can be resumed once its connection is
+     * lost.
+     */
+    public static final String LEASE = "\u0000lease";
+
+    /**
+     * The key of the pair of a REPLICATE or PROMOTE request that holds the
+     * replication key shared by the primary and its backups.
+     */
+    public static final String REPLICATION_KEY = "\u0000replicationKey";
+
+    /**
+     * Checks whether a key is reserved.
+     *
+     * @param key The key
+     * @return True if the key starts with {@link #RESERVED}
+     */
+    public static boolean isReserved(String key) {
+        return key.startsWith(RESERVED);
+    }
+
+    private static final String[] NAMES = { "UNKNOWN", "AUTH", "REGISTER", "PUT", "GET", "MULTI_PUT", "MULTI_GET",
+            "GET_WHEN", "LOGOUT", "CACHE", "INVALIDATE", "REPLICATE", "PROMOTE", "STATS", "HELLO", "SCAN",
+            "CAS", "INCR", "PUT_IF_ABSENT", "RESUME" };
+
+    /**
+     * Returns the name of a request tag.
+     *
+     * @param tag The tag
+     * @return The name, or the number if the tag is unknown
+     */
+    public static String nameOf(int tag) {
+        return tag > 0 && tag < NAMES.length ? NAMES[tag] : Integer.toString(tag);
+    }
 }
\ No newline at end of file
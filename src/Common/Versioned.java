@@ -0,0 +1,43 @@
+package Common;
+
+/**
+ * Versioned class that is a value read from the server together with its
+ * version.
+ * <p>
+ * The version is the commit timestamp of the write that stored the value, and
+ * changes on every write of the key. It is 0 for a key that does not exist.
+ */
+public class Versioned {
+
+    private final byte[] value;
+    private final long version;
+
+    /**
+     * Constructs a new Versioned.
+     *
+     * @param value   The value, or null if the key does not exist
+     * @param version The version of the value
+     */
+    public Versioned(byte[] value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    /**
+     * Returns the value.
+     *
+     * @return The value, or null if the key does not exist
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the version of the value.
+     *
+     * @return The version, 0 if the key does not exist
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,26 @@
+package Server;
+
+import Common.Frame;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Journal interface for the destinations of the applied writes, such as the
+ * write-ahead log or the backups.
+ * <p>
+ * Put records are appended while the stripes of the write are still held, so a
+ * journal sees the writes of each key in the order they were applied.
+ * Registrations are appended once the account is visible, without a lock, which
+ * is safe because an account is never overwritten.
+ */
+public interface Journal {
+
+    /**
+     * Appends a record to the journal.
+     *
+     * @param record The record of an applied write
+     * @return A future completed once the record is safe according to the
+     *         journal, or exceptionally if it could not be kept
+     */
+    CompletableFuture<Void> append(Frame record);
+}
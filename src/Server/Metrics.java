@@ -0,0 +1,108 @@
+package Server;
+
+import Common.LatencyHistogram;
+import Common.Request;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics class that counts the requests of every tag and records their
+ * latencies, from the arrival of a request to the end of its handling.
+ * <p>
+ * Recording is meant to be cheap on the hot path: counters are striped adders,
+ * and every tag has several histograms, picked by thread, which are only
+ * merged when the metrics are read.
+ */
+class Metrics {
+
+    private static final int MAX_TAG = 32;
+    private static final int STRIPES = 16;
+
+    private final Timer[] timers = new Timer[MAX_TAG];
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Timer class that counts and times the requests of one tag.
+     */
+    private static class Timer {
+        final LongAdder count = new LongAdder();
+        final LatencyHistogram[] stripes = new LatencyHistogram[STRIPES];
+
+        Timer() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new LatencyHistogram();
+            }
+        }
+
+        void record(long nanos) {
+            count.increment();
+            stripes[(int) Thread.currentThread().threadId() & (STRIPES - 1)]
+                    .record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+
+        LatencyHistogram merged() {
+            LatencyHistogram all = new LatencyHistogram();
+            for (LatencyHistogram h : stripes) {
+                all.add(h);
+            }
+            return all;
+        }
+    }
+
+    /**
+     * Constructs a new Metrics.
+     */
+    Metrics() {
+        for (int i = 0; i < MAX_TAG; i++) {
+            timers[i] = new Timer();
+        }
+    }
+
+    /**
+     * Records a handled request.
+     *
+     * @param tag   The tag of the request
+     * @param nanos The nanoseconds from its arrival to the end of its handling
+     */
+    void record(int tag, long nanos) {
+        if (tag >= 0 && tag < MAX_TAG) {
+            timers[tag].record(nanos);
+        }
+    }
+
+    /**
+     * Records a request rejected because the server was overloaded.
+     */
+    void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Returns the counters and the latency percentiles of every tag seen so
+     * far, in microseconds.
+     *
+     * @return The metrics, by name
+     */
+    Map<String, String> snapshot() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        for (int tag = 0; tag < MAX_TAG; tag++) {
+            long count = timers[tag].count.sum();
+            if (count == 0) {
+                continue;
+            }
+            LatencyHistogram h = timers[tag].merged();
+            String name = Request.nameOf(tag);
+            stats.put(name + ".count", Long.toString(count));
+            stats.put(name + ".mean_us", String.format("%.1f", h.mean()));
+            stats.put(name + ".p50_us", Long.toString(h.percentile(50)));
+            stats.put(name + ".p99_us", Long.toString(h.percentile(99)));
+            stats.put(name + ".p999_us", Long.toString(h.percentile(99.9)));
+            stats.put(name + ".max_us", Long.toString(h.max()));
+        }
+        stats.put("rejected", Long.toString(rejected.sum()));
+        return stats;
+    }
+}
@@ -0,0 +1,211 @@
+package Server;
+
+import Common.Compression;
+import Common.Endpoint;
+import Common.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * NioConnection class that represents a client connection served by the
+ * non-blocking transport.
+ * <p>
+ * Frames are read by an event loop, which hands every complete frame to the
+ * session of the connection. Frames are sent by writing straight to the
+ * channel while it accepts data, and whatever does not fit is queued and
+ * written by the event loop once the socket becomes writable again, all the
+ * queued frames with a single gathering write. The queue is bounded by
+ * {@code -Dserver.connection.outboundBytes}, and a peer that reads too slowly to
+ * keep it under the limit is disconnected, and so is a peer that announces a
+ * frame longer than {@code -Dserver.connection.maxFrameBytes} (default 64 MiB),
+ * before any of it is buffered. Frames are encoded into and decoded
+ * from byte buffers directly, which are allocated off the heap when
+ * {@code -Dserver.directBuffers=true}.
+ */
+class NioConnection implements Endpoint {
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final boolean DIRECT_BUFFERS = Boolean.getBoolean("server.directBuffers");
+    private static final long OUTBOUND_LIMIT = Long.getLong("server.connection.outboundBytes", 16L << 20);
+    private static final int MAX_FRAME_BYTES = Integer.getInteger("server.connection.maxFrameBytes", 64 << 20);
+
+    private final SocketChannel channel;
+    private final ReentrantLock wl = new ReentrantLock();
+    private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private long outboundBytes = 0;
+    private ByteBuffer readBuffer = allocate(INITIAL_BUFFER_SIZE);
+    private SelectionKey key;
+    private Consumer<Frame> session;
+    private Runnable onClose;
+    private volatile Compression compression = null;
+
+    /**
+     * Constructs a new NioConnection.
+     *
+     * @param channel The connected channel, in non-blocking mode
+     */
+    NioConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Attaches the connection to its event loop and session.
+     *
+     * @param key     The selection key of the channel
+     * @param session The consumer of the frames received
+     * @param onClose Runs once when the connection is closed
+     */
+    void attach(SelectionKey key, Consumer<Frame> session, Runnable onClose) {
+        this.key = key;
+        this.session = session;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Sets the compression of the frames sent over the connection.
+     *
+     * @param compression The compression, or null to send values as is
+     */
+    @Override
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns the compression of the frames sent over the connection.
+     *
+     * @return The compression, or null if values are sent as is
+     */
+    @Override
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sends a frame over the connection without blocking.
+     *
+     * @param frame The frame to send
+     * @throws IOException If an I/O error occurs or the peer was disconnected
+     *                     as a slow consumer
+     */
+    @Override
+    public void send(Frame frame) throws IOException {
+        ByteBuffer buf = frame.encode(DIRECT_BUFFERS, compression);
+
+        wl.lock();
+        try {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            if (outbound.isEmpty()) {
+                channel.write(buf);
+                if (!buf.hasRemaining()) {
+                    return;
+                }
+            }
+            // A single frame larger than the limit is still let through on its own
+            if (outboundBytes == 0 || outboundBytes + buf.limit() <= OUTBOUND_LIMIT) {
+                // The socket buffer is full, let the event loop finish the write
+                outbound.add(buf);
+                outboundBytes += buf.limit();
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                key.selector().wakeup();
+                return;
+            }
+        } finally {
+            wl.unlock();
+        }
+        close();
+        throw new IOException("Slow consumer: more than " + OUTBOUND_LIMIT + " bytes waiting to be sent");
+    }
+
+    /**
+     * Reads the available bytes and delivers every complete frame. Called by the
+     * event loop when the channel is readable.
+     *
+     * @return False if the peer closed the connection
+     * @throws IOException If an I/O error occurs or the peer announced a frame
+     *                     that is too long
+     */
+    boolean onReadable() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        Frame frame;
+        while ((frame = Frame.decode(readBuffer)) != null) {
+            session.accept(frame);
+        }
+        readBuffer.compact();
+        if (readBuffer.position() >= 4 && readBuffer.getInt(0) > MAX_FRAME_BYTES - 4) {
+            throw new IOException("Frame too long: " + readBuffer.getInt(0) + " bytes");
+        }
+        if (!readBuffer.hasRemaining()) {
+            // A single frame is larger than the buffer
+            ByteBuffer bigger = allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the queued frames. Called by the event loop when the channel is
+     * writable.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void onWritable() throws IOException {
+        wl.lock();
+        try {
+            // Gather every queued frame into one write
+            channel.write(outbound.toArray(new ByteBuffer[0]));
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outboundBytes -= outbound.poll().limit();
+            }
+            if (outbound.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } finally {
+            wl.unlock();
+        }
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return DIRECT_BUFFERS ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Closes the connection.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.close();
+            if (key != null) {
+                // The socket is only released once the selector sees the cancelled key
+                key.selector().wakeup();
+            }
+        } finally {
+            if (onClose != null) {
+                onClose.run();
+            }
+        }
+    }
+}
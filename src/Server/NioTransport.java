@@ -0,0 +1,150 @@
+package Server;
+
+import Common.Endpoint;
+import Common.Frame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * NioTransport class that serves client connections with a small number of
+ * selector-based event loops instead of one blocked thread per connection.
+ * <p>
+ * The first event loop also accepts new connections, which are then spread over
+ * all the loops. Each loop reads from its channels, decodes frames incrementally
+ * and hands every complete frame to the session of its connection.
+ */
+public class NioTransport {
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final Function<Endpoint, Consumer<Frame>> sessions;
+    private final Consumer<Endpoint> closed;
+    private int next = 0;
+
+    /**
+     * Constructs a new NioTransport bound to a port.
+     *
+     * @param port     The port to listen on
+     * @param nLoops   The number of event loops
+     * @param sessions Opens the session of a new connection, returning the
+     *                 consumer of its frames
+     * @param closed   Called once a connection is closed
+     * @throws IOException If an I/O error occurs
+     */
+    public NioTransport(int port, int nLoops, Function<Endpoint, Consumer<Frame>> sessions,
+            Consumer<Endpoint> closed) throws IOException {
+        this.sessions = sessions;
+        this.closed = closed;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.loops = new EventLoop[Math.max(1, nLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts the event loops.
+     */
+    public void start() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.start();
+        }
+    }
+
+    /**
+     * Accepts every pending connection and assigns it to an event loop.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * EventLoop class that runs a selector over a set of connections.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                NioConnection c = new NioConnection(channel);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, c);
+                c.attach(key, sessions.apply(c), () -> closed.accept(c));
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                try {
+                    accept();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            NioConnection c = (NioConnection) key.attachment();
+            try {
+                if (key.isReadable() && !c.onReadable()) {
+                    c.close();
+                    return;
+                }
+                if (key.isValid() && key.isWritable()) {
+                    c.onWritable();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                try {
+                    c.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package Server;
+
+import Common.Connection;
+import Common.Demultiplexer;
+import Common.Frame;
+import Common.Request;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Replicator class that streams every applied write of the primary to its
+ * backups, in the order the writes were applied.
+ * <p>
+ * The replicator is a journal in front of the write-ahead log. Every record
+ * gets a sequence number and is queued for each backup, and one thread per
+ * backup ships its queue in REPLICATE frames, without waiting for the previous
+ * frame to be acknowledged. When a backup connects, or reconnects after a
+ * failure, it first receives a copy of the whole state, taken while the new
+ * writes are already being queued for it, since replaying a put or a
+ * registration over a newer copy only rewrites the same value. A backup that
+ * falls too far behind is disconnected and gets a new copy.
+ * <p>
+ * Writes are acknowledged to the clients either as soon as they are logged
+ * locally, or only once a backup has applied them. In the latter mode a write
+ * is acknowledged right away while no backup is connected. The replication lag
+ * of each backup, in records and in milliseconds, is reported by
+ * {@link #toString()}.
+ * <p>
+ * The replicator is configured with the following system properties:
+ * <ul>
+ * <li>{@code server.replicas} - comma-separated {@code host:port} addresses of
+ * the backups, replication is disabled if unset</li>
+ * <li>{@code server.replication.ack} - {@code async} (default) or
+ * {@code sync}</li>
+ * <li>{@code server.replication.maxLag} - records queued for a backup before it
+ * is disconnected (default 100000)</li>
+ * <li>{@code server.replication.key} - the secret shared with the backups, sent
+ * with every REPLICATE frame, required</li>
+ * </ul>
+ */
+public class Replicator implements Journal {
+
+    private static final int BATCH_BYTES = 1 << 20;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Journal log;
+    private final boolean sync;
+    private final int maxLag;
+    private final Supplier<List<Store>> stores;
+    private final Supplier<Map<String, String>> credentials;
+    private final byte[] key;
+    private final List<Shipper> shippers = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, CompletableFuture<Void>> waiting = new TreeMap<>();
+    private long sequence = 0;
+    private volatile boolean started = false;
+
+    /**
+     * Entry class that is a record queued for a backup.
+     */
+    private static class Entry {
+        final long sequence;
+        final long appendedAt;
+        final Frame record;
+
+        Entry(long sequence, long appendedAt, Frame record) {
+            this.sequence = sequence;
+            this.appendedAt = appendedAt;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Constructs a new Replicator.
+     *
+     * @param log         The local journal, or null for none
+     * @param backups     The addresses of the backups, as {@code host:port}
+     * @param sync        Whether writes wait for a backup before being
+     *                    acknowledged
+     * @param maxLag      The records queued for a backup before it is
+     *                    disconnected
+     * @param stores      Returns the stores of every namespace, to copy
+     * @param credentials Returns a copy of the credentials, to copy
+     * @param key         The replication key shared with the backups
+     */
+    public Replicator(Journal log, List<String> backups, boolean sync, int maxLag, Supplier<List<Store>> stores,
+            Supplier<Map<String, String>> credentials, String key) {
+        this.log = log;
+        this.key = key.getBytes(StandardCharsets.UTF_8);
+        this.sync = sync;
+        this.maxLag = maxLag;
+        this.stores = stores;
+        this.credentials = credentials;
+        for (String address : backups) {
+            int colon = address.lastIndexOf(':');
+            shippers.add(new Shipper(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+    }
+
+    /**
+     * Creates a Replicator configured from the system properties.
+     *
+     * @param log         The local journal, or null for none
+     * @param stores      Returns the stores of every namespace, to copy
+     * @param credentials Returns a copy of the credentials, to copy
+     * @return The configured replicator, or null if replication is disabled
+     */
+    public static Replicator fromSystemProperties(Journal log, Supplier<List<Store>> stores,
+            Supplier<Map<String, String>> credentials) {
+        String replicas = System.getProperty("server.replicas");
+        if (replicas == null || replicas.isBlank()) {
+            return null;
+        }
+        boolean sync = "sync".equalsIgnoreCase(System.getProperty("server.replication.ack", "async"));
+        String key = System.getProperty("server.replication.key");
+        if (key == null) {
+            throw new IllegalStateException("Replication needs server.replication.key to be set");
+        }
+        return new Replicator(log, Arrays.asList(replicas.split(",")), sync,
+                Integer.getInteger("server.replication.maxLag", 100000), stores, credentials, key);
+    }
+
+    /**
+     * Starts shipping the writes to the backups. Until then, records only go to
+     * the local journal.
+     */
+    public void start() {
+        lock.lock();
+        try {
+            if (started) {
+                return;
+            }
+            started = true;
+        } finally {
+            lock.unlock();
+        }
+        for (Shipper shipper : shippers) {
+            Thread t = new Thread(shipper::run, "replicator-" + shipper.address());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Appends a record to the local journal and queues it for every connected
+     * backup.
+     *
+     * @param record The record of an applied write
+     * @return A future completed once the record is logged locally and, in sync
+     *         mode, applied by a backup
+     */
+    @Override
+    public CompletableFuture<Void> append(Frame record) {
+        CompletableFuture<Void> logged = log != null ? log.append(record) : CompletableFuture.completedFuture(null);
+        if (!started) {
+            return logged;
+        }
+        CompletableFuture<Void> replicated = null;
+        lock.lock();
+        try {
+            Entry entry = new Entry(++sequence, System.nanoTime(), record);
+            boolean queued = false;
+            for (Shipper shipper : shippers) {
+                queued |= shipper.offer(entry);
+            }
+            if (sync && queued) {
+                replicated = new CompletableFuture<>();
+                waiting.put(entry.sequence, replicated);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return replicated != null ? CompletableFuture.allOf(logged, replicated) : logged;
+    }
+
+    /**
+     * Completes the writes waiting for a backup, up to a sequence number.
+     */
+    private void acknowledged(long upTo) {
+        List<CompletableFuture<Void>> done;
+        lock.lock();
+        try {
+            Map<Long, CompletableFuture<Void>> head = waiting.headMap(upTo, true);
+            done = new ArrayList<>(head.values());
+            head.clear();
+        } finally {
+            lock.unlock();
+        }
+        // Complete outside the lock, the callbacks reply to the clients
+        for (CompletableFuture<Void> future : done) {
+            future.complete(null);
+        }
+    }
+
+    /**
+     * Completes every waiting write once no backup is left to wait for.
+     */
+    private void disconnected() {
+        long upTo = -1;
+        lock.lock();
+        try {
+            boolean any = false;
+            for (Shipper shipper : shippers) {
+                any |= shipper.isLive();
+            }
+            if (!any && !waiting.isEmpty()) {
+                upTo = waiting.lastKey();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (upTo >= 0) {
+            acknowledged(upTo);
+        }
+    }
+
+    /**
+     * Returns the replication lag of every backup.
+     *
+     * @return The lag summary
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("replication (").append(sync ? "sync" : "async").append("):");
+        for (Shipper shipper : shippers) {
+            sb.append(' ').append(shipper);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Shipper class that streams the records of one backup.
+     */
+    private class Shipper {
+        private final String host;
+        private final int port;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        private boolean live = false;
+        private boolean broken = false;
+        private volatile long shipped = 0;
+        private volatile long acked = 0;
+        private volatile long lagNanos = 0;
+
+        Shipper(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        String address() {
+            return host + ":" + port;
+        }
+
+        /**
+         * Queues a record, unless the backup is disconnected. Called with the
+         * lock of the replicator held, so records are queued in order.
+         *
+         * @return True if the record was queued
+         */
+        boolean offer(Entry entry) {
+            lock.lock();
+            try {
+                if (!live || broken) {
+                    return false;
+                }
+                if (queue.size() >= maxLag) {
+                    // Too far behind, reconnect and start over from a copy
+                    broken = true;
+                    notEmpty.signal();
+                    return false;
+                }
+                queue.add(entry);
+                if (queue.size() == 1) {
+                    notEmpty.signal();
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isLive() {
+            lock.lock();
+            try {
+                return live && !broken;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Shipper thread loop, connects to the backup and streams to it until
+         * the connection fails, then retries.
+         */
+        void run() {
+            while (true) {
+                try (Socket socket = new Socket(host, port)) {
+                    Demultiplexer demultiplexer = new Demultiplexer(new Connection(socket));
+                    demultiplexer.start();
+                    // Go live between two appends, everything before is in the copy
+                    Replicator.this.lock.lock();
+                    lock.lock();
+                    try {
+                        queue.clear();
+                        broken = false;
+                        live = true;
+                        shipped = sequence;
+                        acked = sequence;
+                    } finally {
+                        lock.unlock();
+                        Replicator.this.lock.unlock();
+                    }
+                    System.out.println("Server: Replicating to " + address());
+                    sendCopy(demultiplexer);
+                    while (true) {
+                        ship(demultiplexer, take());
+                    }
+                } catch (IOException e) {
+                    lock.lock();
+                    try {
+                        if (live) {
+                            System.out.println("Server: Lost backup " + address() + " - " + e.getMessage());
+                        }
+                        live = false;
+                        queue.clear();
+                    } finally {
+                        lock.unlock();
+                    }
+                    disconnected();
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Takes the queued records, up to about one batch.
+         */
+        private List<Entry> take() throws IOException {
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !broken) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (broken) {
+                    throw new IOException("backup fell behind or failed");
+                }
+                List<Entry> batch = new ArrayList<>();
+                long bytes = 0;
+                while (!queue.isEmpty() && bytes < BATCH_BYTES) {
+                    Entry entry = queue.poll();
+                    batch.add(entry);
+                    bytes += entry.record.encodedLength();
+                }
+                return batch;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Sends a batch of records in one frame, each keyed by its sequence
+         * number.
+         */
+        private void ship(Demultiplexer demultiplexer, List<Entry> batch) throws IOException {
+            Map<String, byte[]> records = new LinkedHashMap<>();
+            records.put(Request.REPLICATION_KEY, key);
+            for (Entry entry : batch) {
+                records.put(Long.toString(entry.sequence), entry.record.encode(false).array());
+            }
+            Entry last = batch.get(batch.size() - 1);
+            shipped = last.sequence;
+            demultiplexer.sendAsync(Request.REPLICATE, records).whenComplete((reply, e) -> {
+                if (e != null || reply.keyValuePairs.containsKey("ERROR")) {
+                    fail(e != null ? e.getMessage() : new String(reply.keyValuePairs.get("ERROR")));
+                    return;
+                }
+                acked = last.sequence;
+                lagNanos = System.nanoTime() - last.appendedAt;
+                acknowledged(last.sequence);
+            });
+        }
+
+        /**
+         * Sends a copy of the whole state, as records without a sequence
+         * number. Each record is sent once it reaches about one batch, so the
+         * copy never holds more than one record on the heap.
+         */
+        private void sendCopy(Demultiplexer demultiplexer) {
+            Map<String, byte[]> users = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : credentials.get().entrySet()) {
+                users.put(entry.getKey(), entry.getValue().getBytes());
+            }
+            sendRecord(demultiplexer, new Frame(Request.REGISTER, users));
+            for (Store store : stores.get()) {
+                Map<String, byte[]> pairs = new LinkedHashMap<>();
+                Map<String, Long> deadlines = new HashMap<>();
+                Map<String, Long> versions = new HashMap<>();
+                long[] bytes = { 0 };
+                store.forEach((key, value, expires, version) -> {
+                    pairs.put(key, value);
+                    if (expires != 0) {
+                        deadlines.put(key, expires);
+                    }
+                    versions.put(key, version);
+                    bytes[0] += key.length() + value.length;
+                    if (bytes[0] >= BATCH_BYTES) {
+                        sendRecord(demultiplexer, store.logRecord(pairs, deadlines, versions));
+                        pairs.clear();
+                        deadlines.clear();
+                        versions.clear();
+                        bytes[0] = 0;
+                    }
+                });
+                sendRecord(demultiplexer, store.logRecord(pairs, deadlines, versions));
+            }
+        }
+
+        /**
+         * Sends one record of the copy, unless the backup already failed. The
+         * connection has no writer, so the record is written before this
+         * returns.
+         */
+        private void sendRecord(Demultiplexer demultiplexer, Frame record) {
+            lock.lock();
+            try {
+                if (broken) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            Map<String, byte[]> copy = new LinkedHashMap<>();
+            copy.put(Request.REPLICATION_KEY, key);
+            copy.put("0", record.encode(false).array());
+            demultiplexer.sendAsync(Request.REPLICATE, copy).whenComplete((reply, e) -> {
+                if (e != null || reply.keyValuePairs.containsKey("ERROR")) {
+                    fail(e != null ? e.getMessage() : new String(reply.keyValuePairs.get("ERROR")));
+                }
+            });
+        }
+
+        private void fail(String reason) {
+            lock.lock();
+            try {
+                if (!broken) {
+                    System.out.println("Server: Backup " + address() + " failed - " + reason);
+                }
+                broken = true;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (!isLive()) {
+                return address() + " disconnected;";
+            }
+            int queued;
+            lock.lock();
+            try {
+                queued = queue.size();
+            } finally {
+                lock.unlock();
+            }
+            return String.format("%s acked %d, lag %d records / %.1f ms;", address(), acked,
+                    shipped - acked + queued, lagNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package Server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RequestExecutor class that runs the requests of every connection.
+ * <p>
+ * Requests run either on a bounded pool of platform threads or on one virtual
+ * thread each. Requests of the same connection always run one at a time and in
+ * the order they arrived. Both the pool queue and the queue of each connection
+ * are bounded, and a request that does not fit is rejected instead of piling
+ * up in memory.
+ * <p>
+ * The execution model is configured with the following system properties:
+ * <ul>
+ * <li>{@code server.executor} - {@code pool} (default) or {@code virtual}</li>
+ * <li>{@code server.workers} - number of pool threads (default 64)</li>
+ * <li>{@code server.queue} - pool queue capacity (default 10000)</li>
+ * <li>{@code server.connection.queue} - pending requests per connection
+ * (default 1024)</li>
+ * </ul>
+ */
+public class RequestExecutor {
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final int connectionQueueLimit;
+
+    /**
+     * Constructs a new RequestExecutor.
+     *
+     * @param virtual              Whether to run each request on a virtual thread
+     * @param workers              The number of pool threads
+     * @param queueLimit           The capacity of the pool queue
+     * @param connectionQueueLimit The maximum pending requests per connection
+     */
+    public RequestExecutor(boolean virtual, int workers, int queueLimit, int connectionQueueLimit) {
+        this.virtual = virtual;
+        this.connectionQueueLimit = connectionQueueLimit;
+        if (virtual) {
+            this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueLimit), new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * Creates a RequestExecutor configured from the system properties.
+     *
+     * @return The configured executor
+     */
+    public static RequestExecutor fromSystemProperties() {
+        boolean virtual = "virtual".equals(System.getProperty("server.executor", "pool"));
+        return new RequestExecutor(virtual,
+                Integer.getInteger("server.workers", 64),
+                Integer.getInteger("server.queue", 10000),
+                Integer.getInteger("server.connection.queue", 1024));
+    }
+
+    /**
+     * Starts a long-running task, such as the reader loop of a connection. It
+     * runs on a virtual thread in virtual mode and on a platform thread
+     * otherwise.
+     *
+     * @param task The task to start
+     */
+    public void startThread(Runnable task) {
+        if (virtual) {
+            Thread.ofVirtual().start(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    /**
+     * Creates the ordered request queue of a new connection.
+     *
+     * @return The connection queue
+     */
+    public ConnectionQueue newConnectionQueue() {
+        return new ConnectionQueue();
+    }
+
+    /**
+     * ConnectionQueue class that runs the requests of one connection in order,
+     * never more than one at a time.
+     */
+    public class ConnectionQueue {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        private ConnectionQueue() {
+        }
+
+        /**
+         * Submits a request to run after the previous requests of the connection.
+         *
+         * @param task The request to run
+         * @return True if the request was accepted, false if it was rejected
+         *         because the server is overloaded
+         */
+        public boolean submit(Runnable task) {
+            lock.lock();
+            try {
+                if (tasks.size() >= connectionQueueLimit) {
+                    return false;
+                }
+                tasks.add(task);
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                executor.execute(this::drain);
+                return true;
+            } catch (RejectedExecutionException e) {
+                // Nothing was running, so the queue only holds this request
+                lock.lock();
+                try {
+                    tasks.clear();
+                    scheduled = false;
+                } finally {
+                    lock.unlock();
+                }
+                return false;
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                lock.lock();
+                try {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
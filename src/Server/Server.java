@@ -1,40 +1,99 @@
 package Server;
 
+import Common.Compression;
 import Common.Connection;
+import Common.Endpoint;
 import Common.Request;
 import Common.Frame;
+import Common.Versioned;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Server class that handles client connections and processes requests.
+ * <p>
+ * With {@code -Dserver.namespaces=true} every user gets a keyspace of their own,
+ * with its own locks, so that users never contend with each other. The bytes of
+ * each keyspace can be limited with {@code -Dserver.namespaces.quota}.
+ * <p>
+ * A server started with {@code -Dserver.role=backup} applies the writes
+ * streamed by its primary, serves reads and refuses writes from clients until
+ * it is promoted. A primary streams its writes to the backups listed in
+ * {@code -Dserver.replicas}, see {@link Replicator}. Both need the same
+ * {@code -Dserver.replication.key}, without which they refuse to start.
+ * <p>
+ * Clients can ask for the values of their frames to be compressed with a HELLO
+ * request, which the server accepts unless {@code -Dserver.compression=false}.
+ * <p>
+ * Replies are queued per connection and written in batches, and a client that
+ * leaves more than {@code -Dserver.connection.outboundBytes} (default 16 MiB)
+ * unread is disconnected.
  */
 public class Server {
 
-    private static final Map<String, String> credentialsMap = new HashMap<>();
-    private static final ReentrantLock liuLock = new ReentrantLock();
-    private static final ReentrantLock storeLock = new ReentrantLock();
-    private static final Condition storeCondition = storeLock.newCondition();
-    private static final Condition loginCondition = liuLock.newCondition();
-    private static final Map<String, byte[]> store = new HashMap<>();
-    private static final Set<String> loggedInUsers = new HashSet<>();
-    private static final Queue<Connection> waitingQueue = new LinkedList<>();
-    private static final int MAX_SESSIONS = 10000;
-    private static int currentSessions = 0;
+    private static final Map<String, String> credentialsMap = new ConcurrentHashMap<>();
+    private static WriteAheadLog wal;
+    private static Replicator replicator;
+    private static Journal journal;
+    private static volatile boolean backup = "backup".equals(System.getProperty("server.role"));
+    private static ValueArena arena;
+    private static Store store;
+    private static final boolean NAMESPACES = Boolean.getBoolean("server.namespaces");
+    private static final long NAMESPACE_QUOTA = Long.getLong("server.namespaces.quota", 0);
+    private static final Map<String, Store> namespaces = new ConcurrentHashMap<>();
+    private static final Map<Endpoint, Consumer<Set<String>>> trackers = new ConcurrentHashMap<>();
+    private static final int MAX_SESSIONS = Integer.getInteger("server.maxSessions", 10000);
+    private static final String REPLICATION_KEY = System.getProperty("server.replication.key");
+    private static final long SESSION_LEASE = Long.getLong("server.session.leaseMillis", 30000);
+    private static final SessionRegistry sessions = new SessionRegistry(MAX_SESSIONS, SESSION_LEASE);
+    private static final RequestExecutor executor = RequestExecutor.fromSystemProperties();
+    private static final Metrics metrics = new Metrics();
+    private static final int SCAN_CHUNK_BYTES = Integer.getInteger("server.scan.chunkBytes", 64 * 1024);
+    private static final int SCAN_MAX_LIMIT = 10000;
+    private static final long OUTBOUND_LIMIT = Long.getLong("server.connection.outboundBytes", 16L << 20);
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("server.compression", "true"));
 
     /**
-     * Main method to start the server.
+     * Main method to start the server. The port is the first argument, or
+     * {@code -Dserver.port} (default 8080), so that several nodes can run on the
+     * same host.
      *
      * @param args Command line arguments
      * @throws IOException If an I/O error occurs
      */
     public static void main(String[] args) throws IOException {
-        int port = 8080;
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("server.port", 8080);
+        recover();
+        if (store.getArena() != null) {
+            System.out.println("Server: Off-heap " + store.getArena());
+        }
+        if (backup && REPLICATION_KEY == null) {
+            // Without a key no primary could stream to it, nor could anyone promote it
+            throw new IllegalStateException("A backup needs server.replication.key to be set");
+        }
+        if (backup) {
+            System.out.println("Server: Running as a backup");
+        } else if (replicator != null) {
+            replicator.start();
+        }
+        if ("nio".equals(System.getProperty("server.transport"))) {
+            // Serve every connection from a few selector event loops
+            int loops = Integer.getInteger("server.eventLoops", Runtime.getRuntime().availableProcessors());
+            new NioTransport(port, loops, Server::openSession, Server::closeSession).start();
+            System.out.println("Server: Listening on port " + port + " (nio, " + loops + " event loops)");
+            return;
+        }
+
         ServerSocket serverSocket = new ServerSocket(port);
         System.out.println("Server: Listening on port " + port);
 
@@ -43,33 +102,214 @@ public class Server {
             // System.out.println("Client connected from " +
             // clientSocket.getInetAddress().getHostAddress());
             Connection c = new Connection(clientSocket);
-            new Thread(() -> handleClient(c)).start();
+            // Replies are queued and written by a writer of their own, handlers never block on the socket
+            c.startWriter(OUTBOUND_LIMIT, executor::startThread);
+            executor.startThread(() -> handleClient(c));
+        }
+    }
+
+    /**
+     * Creates the store and, if the write-ahead log is enabled, rebuilds the
+     * store and the credentials from it.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    private static void recover() throws IOException {
+        wal = WriteAheadLog.fromSystemProperties();
+        arena = ValueArena.fromSystemProperties();
+        replicator = Replicator.fromSystemProperties(wal, Server::stores, Server::credentialsCopy);
+        journal = replicator != null ? replicator : wal;
+        store = new Store("", journal, arena, 0);
+        if (wal == null) {
+            return;
+        }
+        Snapshotter snapshotter = new Snapshotter(wal.getDirectory(), wal, Server::stores, Server::credentialsCopy,
+                Long.getLong("server.snapshot.segmentSize", 64L << 20));
+        // Load the newest snapshot and replay only the log written after it
+        long fromSegment = snapshotter.load(Server::recoverRecord);
+        wal.replay(fromSegment, Server::recoverRecord);
+        wal.start();
+        long interval = Long.getLong("server.snapshot.interval", 300);
+        if (interval > 0) {
+            snapshotter.schedule(interval);
+        }
+        int keys = 0;
+        for (Store s : stores()) {
+            keys += s.size();
+        }
+        System.out.println("Server: Recovered " + keys + " keys and " + credentialsMap.size() + " users");
+    }
+
+    /**
+     * Returns the store of a namespace, creating it if needed.
+     *
+     * @param name The name of the namespace, empty for the global one
+     * @return The store of the namespace
+     */
+    private static Store namespace(String name) {
+        if (name.isEmpty()) {
+            return store;
+        }
+        return namespaces.computeIfAbsent(name, n -> new Store(n, journal, arena, NAMESPACE_QUOTA));
+    }
+
+    /**
+     * Returns the store the requests of a connection work on.
+     *
+     * @param c The client connection
+     * @return The namespace of the logged in user, or the global store if
+     *         namespaces are disabled or the connection is not logged in
+     */
+    private static Store storeOf(Endpoint c) {
+        String username = NAMESPACES ? sessions.usernameOf(c) : null;
+        return username != null ? namespace(username) : store;
+    }
+
+    /**
+     * Returns every store, the global one first, for snapshots.
+     *
+     * @return The stores
+     */
+    private static List<Store> stores() {
+        List<Store> list = new ArrayList<>();
+        list.add(store);
+        list.addAll(namespaces.values());
+        return list;
+    }
+
+    /**
+     * Applies a record recovered from a snapshot or from the log. May be called
+     * from several threads at once while loading a snapshot.
+     *
+     * @param record The recovered record
+     */
+    private static void recoverRecord(Frame record) {
+        switch (record.tag) {
+            case Request.PUT:
+                namespace(Store.namespaceOf(record)).restore(record.keyValuePairs);
+                break;
+            case Request.REGISTER:
+                for (Map.Entry<String, byte[]> entry : record.keyValuePairs.entrySet()) {
+                    credentialsMap.put(entry.getKey(), new String(entry.getValue()));
+                }
+                break;
+            default:
         }
     }
 
     /**
-     * Handles client connections and processes incoming frames.
+     * Returns a copy of the credentials, for snapshots.
+     *
+     * @return The copy of the credentials
+     */
+    private static Map<String, String> credentialsCopy() {
+        return new HashMap<>(credentialsMap);
+    }
+
+    /**
+     * Sends a reply once a write is durable, or an error if it was refused or
+     * could not be logged.
+     *
+     * @param durable The future of the write
+     * @param frame   The request frame
+     * @param reply   The key-value pairs of the reply
+     * @param c       The client connection
+     */
+    private static void replyWhenDurable(CompletableFuture<Void> durable, Frame frame, Map<String, byte[]> reply,
+            Endpoint c) {
+        durable.whenComplete((v, e) -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            String error = cause == null ? null
+                    : cause instanceof IOException ? "write could not be logged" : cause.getMessage();
+            try {
+                c.send(frame.reply(error == null ? reply
+                        : Collections.singletonMap("ERROR", ("Error - " + error + ".").getBytes())));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Handles client connections and processes incoming frames, closing the
+     * connection once its peer is gone.
      *
      * @param c The client connection
      */
     private static void handleClient(Connection c) {
+        Consumer<Frame> session = openSession(c);
         try {
             while (true) {
-                Frame frame = c.receive();
-                new Thread(() -> handleRequest(frame, c)).start();
+                session.accept(c.receive());
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            closeSession(c);
+            try {
+                // Wakes the writer of the connection up, so that it exits
+                c.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
+    /**
+     * Closes the session of a connection that was closed, keeping its user
+     * logged in for the lease of the session or cancelling its queued login.
+     *
+     * @param c The client connection
+     */
+    private static void closeSession(Endpoint c) {
+        sessions.disconnect(c);
+        trackers.remove(c);
+    }
+
+    /**
+     * Opens the session of a new connection.
+     *
+     * @param c The client connection
+     * @return The consumer that dispatches the frames received on the connection
+     */
+    private static Consumer<Frame> openSession(Endpoint c) {
+        RequestExecutor.ConnectionQueue queue = executor.newConnectionQueue();
+        return frame -> {
+            long received = System.nanoTime();
+            // Requests of the same connection run in order on the executor
+            if (!queue.submit(() -> {
+                handleRequest(frame, c);
+                metrics.record(frame.tag, System.nanoTime() - received);
+            })) {
+                metrics.rejected();
+                try {
+                    handleRejected(frame, c);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+
+    /**
+     * Replies to a request that was rejected because the server is overloaded.
+     *
+     * @param frame The rejected frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleRejected(Frame frame, Endpoint c) throws IOException {
+        c.send(frame.reply(
+                Collections.singletonMap("ERROR", "Error - server overloaded, try again later.".getBytes())));
+    }
+
     /**
      * Handles incoming requests based on the frame tag.
      *
      * @param frame The received frame
      * @param c     The client connection
      */
-    private static void handleRequest(Frame frame, Connection c) {
+    private static void handleRequest(Frame frame, Endpoint c) {
         try {
             switch (frame.tag) {
                 case Request.AUTH:
@@ -90,6 +330,32 @@ public class Server {
                 case Request.LOGOUT:
                     handleLogout(frame, c);
                     break;
+                case Request.CACHE:
+                    handleCache(frame, c);
+                    break;
+                case Request.REPLICATE:
+                    handleReplicate(frame, c);
+                    break;
+                case Request.PROMOTE:
+                    handlePromote(frame, c);
+                    break;
+                case Request.STATS:
+                    handleStats(frame, c);
+                    break;
+                case Request.HELLO:
+                    handleHello(frame, c);
+                    break;
+                case Request.SCAN:
+                    handleScan(frame, c);
+                    break;
+                case Request.RESUME:
+                    handleResume(frame, c);
+                    break;
+                case Request.CAS:
+                case Request.INCR:
+                case Request.PUT_IF_ABSENT:
+                    handleConditional(frame, c);
+                    break;
                 default:
 
             }
@@ -99,63 +365,88 @@ public class Server {
     }
 
     /**
-     * Handles user authentication.
+     * Handles user authentication. The reply holds the token of the session and
+     * its lease, the time for which the session can be resumed with the token
+     * after the connection is lost.
      *
      * @param frame The received frame
      * @param c     The client connection
      * @throws IOException If an I/O error occurs
      */
-    private static void handleAuth(Frame frame, Connection c) throws IOException {
+    private static void handleAuth(Frame frame, Endpoint c) throws IOException {
         // System.out.println("Server: User authentication attempt.");
         String username = frame.keyValuePairs.keySet().iterator().next();
         String password = new String(frame.keyValuePairs.get(username));
 
-        // Lock the credentials map to prevent concurrent access
-        liuLock.lock();
-        try {
-            // Check if the user exists and if is already logged in
-            if (credentialsMap.containsKey(username)) {
-                String storedPassword = credentialsMap.get(username);
-                if (loggedInUsers.contains(username)) {
-                    // System.out.println("Server: User already logged in");
-                    c.send(new Frame(Request.AUTH,
-                            Collections.singletonMap("ERROR", "Error - user already logged in.".getBytes())));
-                }
-                // Check if the password is correct
-                else if (storedPassword.equals(password)) {
-
-                    // Check if the maximum number of sessions has been reached
-                    while (currentSessions >= MAX_SESSIONS) {
-                        // System.out.println("Server: Maximum sessions reached. Adding to waiting
-                        // queue.");
-                        // Add the client to the waiting queue and wait for a signal
-                        waitingQueue.add(c);
-                        c.send(new Frame(Request.AUTH,
-                                Collections.singletonMap("WAIT",
-                                        "Waiting for a session to become available...".getBytes())));
-                        loginCondition.await();
-                    }
-
-                    // System.out.println("Server: Authentication successful");
-                    c.send(new Frame(Request.AUTH,
-                            Collections.singletonMap(username, "Login made successfully.".getBytes())));
-                    loggedInUsers.add(username);
-                    currentSessions++;
-                    // System.out.println("Current sessions: " + currentSessions);
-                } else {
-                    c.send(new Frame(Request.AUTH,
-                            Collections.singletonMap("ERROR", "Error - Wrong password.".getBytes())));
-                }
-            } else {
-                c.send(new Frame(Request.AUTH,
-                        Collections.singletonMap("ERROR", "Error - User not found.".getBytes())));
+        // Check if the user exists and if the password is correct
+        String storedPassword = credentialsMap.get(username);
+        if (storedPassword == null) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - User not found.".getBytes())));
+            return;
+        }
+        if (!storedPassword.equals(password)) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - Wrong password.".getBytes())));
+            return;
+        }
+
+        // A login that finds every session taken is answered when one is freed
+        SessionRegistry.Result result = sessions.login(c, username, () -> {
+            try {
+                c.send(frame.reply(sessionReply(c, username, "Login made successfully.")));
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        } finally {
-            // System.out.println("Users logged in: " + loggedInUsers);
-            liuLock.unlock();
+        });
+        switch (result) {
+            case ADMITTED:
+                c.send(frame.reply(sessionReply(c, username, "Login made successfully.")));
+                break;
+            case WAITING:
+                c.send(frame.reply(Collections.singletonMap("WAIT",
+                        "Waiting for a session to become available...".getBytes())));
+                break;
+            case ALREADY_LOGGED_IN:
+                c.send(frame.reply(Collections.singletonMap("ERROR", "Error - user already logged in.".getBytes())));
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Handles session resumption, which logs a new connection in with the token
+     * of a session instead of the credentials of its user.
+     *
+     * @param frame The received frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleResume(Frame frame, Endpoint c) throws IOException {
+        String token = textOf(frame.keyValuePairs, Request.TOKEN);
+        String username = token != null ? sessions.resume(c, token) : null;
+        if (username == null) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - session expired.".getBytes())));
+            return;
         }
+        c.send(frame.reply(sessionReply(c, username, "Session resumed.")));
+    }
+
+    /**
+     * Returns the reply to a login, with the token and lease of the session.
+     *
+     * @param c        The client connection
+     * @param username The name of the user
+     * @param message  The message of the reply
+     * @return The key-value pairs of the reply
+     */
+    private static Map<String, byte[]> sessionReply(Endpoint c, String username, String message) {
+        Map<String, byte[]> reply = new LinkedHashMap<>();
+        reply.put(username, message.getBytes());
+        String token = sessions.tokenOf(c);
+        if (token != null) {
+            reply.put(Request.TOKEN, token.getBytes(StandardCharsets.UTF_8));
+            reply.put(Request.LEASE, ByteBuffer.allocate(8).putLong(sessions.leaseMillis()).array());
+        }
+        return reply;
     }
 
     /**
@@ -165,54 +456,252 @@ public class Server {
      * @param c     The client connection
      * @throws IOException If an I/O error occurs
      */
-    private static void handleRegister(Frame frame, Connection c) throws IOException {
+    private static void handleRegister(Frame frame, Endpoint c) throws IOException {
         // System.out.println("Server: User registration attempt.");
         String username = frame.keyValuePairs.keySet().iterator().next();
         String password = new String(frame.keyValuePairs.get(username));
+        if (backup) {
+            handleReadOnly(frame, c);
+            return;
+        }
 
-        liuLock.lock();
-        try {
-            // Check if the account already exists
-            if (credentialsMap.containsKey(username)) {
-                // System.out.println("Server: Account already exists");
-                c.send(new Frame(Request.REGISTER, Collections.singletonMap("ERROR",
-                        "Error - Account already exists.".getBytes())));
+        // Create the account unless it already exists
+        if (credentialsMap.putIfAbsent(username, password) != null) {
+            // System.out.println("Server: Account already exists");
+            c.send(frame.reply(Collections.singletonMap("ERROR",
+                    "Error - Account already exists.".getBytes())));
+            return;
+        }
+        // Logged after the account is visible, so a snapshot taken meanwhile keeps it
+        CompletableFuture<Void> durable = journal != null
+                ? journal.append(new Frame(Request.REGISTER, frame.keyValuePairs))
+                : CompletableFuture.completedFuture(null);
+        // Only confirm the registration once it is in the log
+        replyWhenDurable(durable, frame,
+                Collections.singletonMap(username, "Successful registration!".getBytes()), c);
+    }
 
+    /**
+     * Handles multi-put requests. A request whose keys expire ends with the
+     * {@link Request#TTLS} pair, which is turned into a deadline per key. Writes
+     * to reserved keys are refused.
+     *
+     * @param frame The received frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleMultiPut(Frame frame, Endpoint c) throws IOException {
+        if (backup) {
+            handleReadOnly(frame, c);
+            return;
+        }
+        Map<String, byte[]> pairs = frame.keyValuePairs;
+        Map<String, Long> expires = null;
+        byte[] ttls = pairs.get(Request.TTLS);
+        if (ttls != null) {
+            pairs = new LinkedHashMap<>(pairs);
+            pairs.remove(Request.TTLS);
+            if (ttls.length != 8 * pairs.size()) {
+                c.send(frame.reply(Collections.singletonMap("ERROR", "Error - malformed request.".getBytes())));
+                return;
             }
-            // Create a new account
-            else {
-                // System.out.println("Server: Creating new account");
-                credentialsMap.put(username, password);
-                c.send(new Frame(Request.REGISTER,
-                        Collections.singletonMap(username, "Successful registration!".getBytes())));
+            long now = System.currentTimeMillis();
+            ByteBuffer buf = ByteBuffer.wrap(ttls);
+            expires = new HashMap<>();
+            for (String key : pairs.keySet()) {
+                long ttl = buf.getLong();
+                if (ttl < 0) {
+                    c.send(frame.reply(Collections.singletonMap("ERROR", "Error - negative TTL.".getBytes())));
+                    return;
+                }
+                if (ttl > 0) {
+                    expires.put(key, now + Math.min(ttl, Long.MAX_VALUE - now));
+                }
             }
-        } finally {
-            liuLock.unlock();
         }
+        for (String key : pairs.keySet()) {
+            if (Request.isReserved(key)) {
+                c.send(frame.reply(Collections.singletonMap("ERROR", "Error - reserved key.".getBytes())));
+                return;
+            }
+        }
+        // Store every key-value pair atomically, locking only the stripes touched
+        CompletableFuture<Void> durable = storeOf(c).put(pairs, expires);
+        // Send a response back to the client indicating success once the write is durable
+        replyWhenDurable(durable, frame, Collections.singletonMap("", new byte[] { 1 }), c);
     }
 
     /**
-     * Handles multi-put requests.
+     * Replies to a write sent to a backup.
+     *
+     * @param frame The refused frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleReadOnly(Frame frame, Endpoint c) throws IOException {
+        c.send(frame.reply(Collections.singletonMap("ERROR",
+                "Error - read-only backup, send writes to the primary.".getBytes())));
+    }
+
+    /**
+     * Returns whether a replication request comes from a peer, that is whether it
+     * carries the replication key. Without a key configured, no request does.
+     *
+     * @param frame The received frame
+     * @param c     The client connection
+     * @return True if the request may change the role or the state of the
+     *         server
+     */
+    private static boolean isPeer(Frame frame, Endpoint c) {
+        if (REPLICATION_KEY == null) {
+            return false;
+        }
+        byte[] key = frame.keyValuePairs.get(Request.REPLICATION_KEY);
+        return key != null && MessageDigest.isEqual(key, REPLICATION_KEY.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Handles the writes streamed by the primary to a backup. Every value of the
+     * frame, besides the replication key, is an encoded record, applied in order
+     * and acknowledged once they are all durable.
+     *
+     * @param frame The received frame
+     * @param c     The connection of the primary
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleReplicate(Frame frame, Endpoint c) throws IOException {
+        if (!isPeer(frame, c)) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - not authorized.".getBytes())));
+            return;
+        }
+        if (!backup) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - not a backup.".getBytes())));
+            return;
+        }
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        for (Map.Entry<String, byte[]> pair : frame.keyValuePairs.entrySet()) {
+            if (pair.getKey().equals(Request.REPLICATION_KEY)) {
+                continue;
+            }
+            Frame record = Frame.decode(ByteBuffer.wrap(pair.getValue()));
+            if (record == null) {
+                throw new IOException("Truncated replicated record");
+            }
+            if (record.tag == Request.PUT) {
+                durable.add(namespace(Store.namespaceOf(record)).replicate(record));
+            } else if (record.tag == Request.REGISTER) {
+                for (Map.Entry<String, byte[]> entry : record.keyValuePairs.entrySet()) {
+                    credentialsMap.put(entry.getKey(), new String(entry.getValue()));
+                }
+                if (journal != null) {
+                    durable.add(journal.append(record));
+                }
+            }
+        }
+        replyWhenDurable(CompletableFuture.allOf(durable.toArray(new CompletableFuture<?>[0])), frame,
+                Collections.singletonMap("", new byte[] { 1 }), c);
+    }
+
+    /**
+     * Handles the promotion of a backup to primary, after which it accepts
+     * writes and streams them to its own backups. Only a peer may promote a
+     * backup, so that no client can start a second primary.
+     *
+     * @param frame The received frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handlePromote(Frame frame, Endpoint c) throws IOException {
+        if (!isPeer(frame, c)) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - not authorized.".getBytes())));
+            return;
+        }
+        if (!backup) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - already the primary.".getBytes())));
+            return;
+        }
+        backup = false;
+        if (replicator != null) {
+            replicator.start();
+        }
+        System.out.println("Server: Promoted to primary");
+        c.send(frame.reply(Collections.singletonMap("", new byte[] { 1 })));
+    }
+
+    /**
+     * Handles stats requests, replying with the request metrics and the current
+     * state of the sessions, the store and the replication, as text values.
      *
      * @param frame The received frame
      * @param c     The client connection
      * @throws IOException If an I/O error occurs
      */
-    private static void handleMultiPut(Frame frame, Connection c) throws IOException {
+    private static void handleStats(Frame frame, Endpoint c) throws IOException {
+        Map<String, String> stats = metrics.snapshot();
+        stats.put("sessions", Integer.toString(sessions.active()));
+        stats.put("waitingQueue", Integer.toString(sessions.waiting()));
+        stats.put("detachedSessions", Integer.toString(sessions.detached()));
+        stats.put("users", Integer.toString(credentialsMap.size()));
+        long keys = 0, bytes = 0, waiters = 0, lockWaits = 0, lockWaitNanos = 0, oldVersions = 0;
+        List<Store> all = stores();
+        for (Store s : all) {
+            keys += s.size();
+            bytes += s.usedBytes();
+            waiters += s.waiters();
+            lockWaits += s.lockWaits();
+            lockWaitNanos += s.lockWaitNanos();
+            oldVersions += s.oldVersions();
+        }
+        stats.put("namespaces", Integer.toString(all.size()));
+        stats.put("keys", Long.toString(keys));
+        stats.put("bytes", Long.toString(bytes));
+        stats.put("getWhenWaiters", Long.toString(waiters));
+        stats.put("oldVersions", Long.toString(oldVersions));
+        stats.put("expiring", Integer.toString(Store.expiring()));
+        stats.put("lockWaits", Long.toString(lockWaits));
+        stats.put("lockWait_us", Long.toString(lockWaitNanos / 1000));
+        if (arena != null) {
+            stats.put("arena", arena.toString());
+        }
+        if (replicator != null) {
+            stats.put("replication", replicator.toString());
+        }
+        stats.put("role", backup ? "backup" : "primary");
 
-        storeLock.lock();
+        Map<String, byte[]> reply = new LinkedHashMap<>();
+        stats.forEach((name, value) -> reply.put(name, value.getBytes()));
+        c.send(frame.reply(reply));
+    }
+
+    /**
+     * Handles hello requests, which negotiate the compression of the values sent
+     * both ways. The reply names the codec accepted, and the server compresses
+     * the frames it sends from then on.
+     *
+     * @param frame The received frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleHello(Frame frame, Endpoint c) throws IOException {
+        byte[] codec = frame.keyValuePairs.get("compression");
+        String threshold = textOf(frame.keyValuePairs, "threshold");
+        int minLength;
         try {
-            // Store each key-value pair in the store
-            for (Map.Entry<String, byte[]> entry : frame.keyValuePairs.entrySet()) {
-                store.put(entry.getKey(), entry.getValue());
-            }
-            // Signal all waiting threads that the store has been updated
-            storeCondition.signalAll();
-        } finally {
-            storeLock.unlock();
+            minLength = threshold != null ? Integer.parseInt(threshold) : 1024;
+        } catch (NumberFormatException e) {
+            minLength = -1;
+        }
+        if (minLength < 0) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - invalid compression threshold.".getBytes())));
+            return;
+        }
+        boolean accepted = COMPRESSION && codec != null && Compression.DEFLATE.equals(new String(codec));
+        c.send(frame.reply(Collections.singletonMap("compression",
+                (accepted ? Compression.DEFLATE : "none").getBytes())));
+        if (accepted) {
+            // Values smaller than the threshold asked by the client are sent as is
+            c.setCompression(new Compression(minLength));
         }
-        // Send a response back to the client indicating success
-        c.send(new Frame(Request.PUT, Collections.singletonMap("", new byte[] { 1 })));
     }
 
     /**
@@ -222,21 +711,167 @@ public class Server {
      * @param c     The client connection
      * @throws IOException If an I/O error occurs
      */
-    private static void handleMultiGet(Frame frame, Connection c) throws IOException {
-        Map<String, byte[]> results = new HashMap<>();
+    private static void handleMultiGet(Frame frame, Endpoint c) throws IOException {
+        // Retrieve every requested key from one snapshot of the store
+        Map<String, Versioned> results = storeOf(c).getVersioned(frame.keyValuePairs.keySet(), trackers.get(c));
+        Map<String, byte[]> reply = new LinkedHashMap<>();
+        ByteBuffer versions = ByteBuffer.allocate(8 * results.size());
+        for (Map.Entry<String, Versioned> entry : results.entrySet()) {
+            byte[] value = entry.getValue().getValue();
+            reply.put(entry.getKey(), value != null ? value : "null".getBytes());
+            versions.putLong(entry.getValue().getVersion());
+        }
+        // The versions follow the values, in the same order
+        reply.put(Request.VERSIONS, versions.array());
+        // Send the retrieved key-value pairs back to the client
+        c.send(frame.reply(reply));
+    }
 
-        storeLock.lock();
+    /**
+     * Handles scan requests, which read the keys of a range or with a prefix in
+     * key order. A page of up to {@code limit} pairs is streamed back in frames of
+     * about {@code -Dserver.scan.chunkBytes} each, all with the id of the
+     * request. The last frame ends with the {@link Request#SCAN_NEXT} pair, whose
+     * value is the token to pass as {@code after} for the next page, or empty
+     * once the scan is complete. No lock is held between two keys.
+     *
+     * @param frame The received frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleScan(Frame frame, Endpoint c) throws IOException {
+        Map<String, byte[]> request = frame.keyValuePairs;
+        String after = textOf(request, "after");
+        String limit = textOf(request, "limit");
+        int pageSize;
         try {
-            // Retrieve each requested key from the store
-            for (String key : frame.keyValuePairs.keySet()) {
-                byte[] value = store.get(key);
-                results.put(key, value != null ? value : "null".getBytes());
+            pageSize = limit != null ? Math.min(Integer.parseInt(limit), SCAN_MAX_LIMIT) : 100;
+        } catch (NumberFormatException e) {
+            pageSize = -1;
+        }
+        if (pageSize <= 0) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - invalid page size.".getBytes())));
+            return;
+        }
+        // A continuation token resumes right after the last key of the previous page
+        Iterator<Map.Entry<String, byte[]>> pairs = storeOf(c).scan(after != null ? after : textOf(request, "start"),
+                after == null, textOf(request, "end"), textOf(request, "prefix"));
+
+        Map<String, byte[]> chunk = new LinkedHashMap<>();
+        int chunkBytes = 0;
+        String last = null;
+        for (int n = 0; n < pageSize && pairs.hasNext(); n++) {
+            Map.Entry<String, byte[]> pair = pairs.next();
+            chunk.put(pair.getKey(), pair.getValue());
+            chunkBytes += pair.getKey().length() + pair.getValue().length;
+            last = pair.getKey();
+            if (chunkBytes >= SCAN_CHUNK_BYTES) {
+                c.send(frame.reply(chunk));
+                chunk.clear();
+                chunkBytes = 0;
             }
-        } finally {
-            storeLock.unlock();
         }
-        // Send the retrieved key-value pairs back to the client
-        c.send(new Frame(Request.GET, results));
+        chunk.put(Request.SCAN_NEXT, pairs.hasNext() ? last.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        c.send(frame.reply(chunk));
+    }
+
+    /**
+     * Handles compare-and-set, counter and put-if-absent requests, each done in
+     * one step under the stripe of its key. The request names the key in its
+     * {@code key} field and the value in {@code value}. A compare-and-set may
+     * also carry the {@code expected} value and the 8-byte {@code version} the
+     * key must hold, and an increment carries its 8-byte {@code delta}. The reply
+     * says whether the write was {@code applied} and holds the {@code value} and
+     * {@code version} of the key after it, or as they are if it was not applied,
+     * so that a client need not read the key again before retrying.
+     *
+     * @param frame The received frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleConditional(Frame frame, Endpoint c) throws IOException {
+        if (backup) {
+            handleReadOnly(frame, c);
+            return;
+        }
+        Map<String, byte[]> request = frame.keyValuePairs;
+        String key = textOf(request, "key");
+        byte[] value = request.get("value");
+        byte[] version = request.get("version");
+        byte[] delta = request.get("delta");
+        if (key == null || (frame.tag == Request.INCR ? delta == null || delta.length != 8
+                : value == null || (version != null && version.length != 8))) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - malformed request.".getBytes())));
+            return;
+        }
+        if (Request.isReserved(key)) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", "Error - reserved key.".getBytes())));
+            return;
+        }
+        Store.Outcome outcome;
+        try {
+            switch (frame.tag) {
+                case Request.CAS:
+                    outcome = storeOf(c).compareAndSet(key, request.get("expected"),
+                            version != null ? ByteBuffer.wrap(version).getLong() : -1, value);
+                    break;
+                case Request.INCR:
+                    outcome = storeOf(c).increment(key, ByteBuffer.wrap(delta).getLong());
+                    break;
+                default:
+                    outcome = storeOf(c).putIfAbsent(key, value);
+            }
+        } catch (IllegalStateException e) {
+            c.send(frame.reply(Collections.singletonMap("ERROR", ("Error - " + e.getMessage() + ".").getBytes())));
+            return;
+        }
+        Map<String, byte[]> reply = new LinkedHashMap<>();
+        reply.put("applied", new byte[] { (byte) (outcome.applied ? 1 : 0) });
+        if (outcome.current.getValue() != null) {
+            reply.put("value", outcome.current.getValue());
+        }
+        reply.put("version", ByteBuffer.allocate(8).putLong(outcome.current.getVersion()).array());
+        replyWhenDurable(outcome.durable, frame, reply, c);
+    }
+
+    /**
+     * Returns a text field of a request.
+     *
+     * @param request The key-value pairs of the request
+     * @param name    The name of the field
+     * @return The text, or null if the field is missing or empty
+     */
+    private static String textOf(Map<String, byte[]> request, String name) {
+        byte[] value = request.get(name);
+        return value != null && value.length > 0 ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Handles cache requests, after which every key the client reads is tracked
+     * and an invalidation is pushed to it when the key is next written.
+     *
+     * @param frame The received frame
+     * @param c     The client connection
+     * @throws IOException If an I/O error occurs
+     */
+    private static void handleCache(Frame frame, Endpoint c) throws IOException {
+        trackers.computeIfAbsent(c, conn -> keys -> {
+            // Trackers of closed connections stay registered until their keys are written
+            if (!trackers.containsKey(conn)) {
+                return;
+            }
+            Map<String, byte[]> invalidated = new LinkedHashMap<>();
+            for (String key : keys) {
+                invalidated.put(key, new byte[0]);
+            }
+            try {
+                // Pushed with id 0, it is not the reply to any request
+                conn.send(new Frame(Request.INVALIDATE, invalidated));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        c.send(frame.reply(Collections.singletonMap("", new byte[] { 1 })));
     }
 
     /**
@@ -246,7 +881,7 @@ public class Server {
      * @param c     The client connection
      * @throws IOException If an I/O error occurs
      */
-    private static void handleGetWhen(Frame frame, Connection c) throws IOException {
+    private static void handleGetWhen(Frame frame, Endpoint c) throws IOException {
         Map<String, byte[]> request = frame.keyValuePairs;
         String key;
         String keyCond;
@@ -260,27 +895,16 @@ public class Server {
         }
         byte[] valueCond = request.get(keyCond);
 
-        byte[] value;
-        storeLock.lock();
-        try {
-            // Wait until the condition key has the specified value
-            while (!Arrays.equals(store.get(keyCond), valueCond)) {
-                storeCondition.await();
+        // Reply once the condition key has the specified value, without parking a thread
+        storeOf(c).getWhen(key, keyCond, valueCond, value -> {
+            try {
+                // Send the retrieved value back to the client
+                c.send(frame.reply(
+                        Collections.singletonMap(key, value != null ? value : "null".getBytes())));
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            // Retrieve the value for the requested key
-            value = store.get(key);
-        } catch (InterruptedException e) {
-            value = null;
-        } finally {
-            storeLock.unlock();
-        }
-        try {
-            // Send the retrieved value back to the client
-            c.send(new Frame(Request.GET_WHEN,
-                    Collections.singletonMap(key, value != null ? value : "null".getBytes())));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        });
     }
 
     /**
@@ -290,28 +914,14 @@ public class Server {
      * @param c     The client connection
      * @throws IOException If an I/O error occurs
      */
-    private static void handleLogout(Frame frame, Connection c) throws IOException {
+    private static void handleLogout(Frame frame, Endpoint c) throws IOException {
         // System.out.println("Server: User logout attempt.");
         String username = frame.keyValuePairs.keySet().iterator().next();
 
-        liuLock.lock();
-        try {
-            // Remove the user from the logged-in users set
-            loggedInUsers.remove(username);
-            // Decrement the current session count
-            currentSessions--;
-
-            // Send a response back to the client indicating success
-            c.send(new Frame(Request.LOGOUT, Collections.singletonMap(username, new byte[] { 1 })));
-
-            // If there are clients waiting, signal the next one
-            if (!waitingQueue.isEmpty()) {
-                waitingQueue.poll();
-                loginCondition.signalAll();
-            }
-        } finally {
-            // System.out.println("Current sessions: " + currentSessions);
-            liuLock.unlock();
-        }
+        // Free the session, which admits the next waiting login if there is one
+        sessions.logout(c);
+
+        // Send a response back to the client indicating success
+        c.send(frame.reply(Collections.singletonMap(username, new byte[] { 1 })));
     }
-}
\ No newline at end of file
+}
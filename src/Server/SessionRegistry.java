@@ -0,0 +1,374 @@
+package Server;
+
+import Common.Endpoint;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SessionRegistry class that keeps the sessions of the logged in users and
+ * admits new ones in arrival order once the maximum number of sessions is
+ * reached.
+ * <p>
+ * A login that finds no free session is queued instead of parking its thread,
+ * and its admission callback runs when a session is freed. A freed session is
+ * handed straight to the oldest waiter, so logins that arrive later cannot take
+ * it first and a logout wakes exactly one waiter. The admission lock only
+ * guards the session count and the queue, the callbacks run after releasing
+ * it.
+ * <p>
+ * Every session gets a random token when it is admitted. A session whose
+ * connection is closed without logging out is kept for a lease, during which a
+ * new connection can resume it with the token alone, in a single lookup and
+ * without a place in the queue. Sessions that are not resumed in time are
+ * reclaimed by a timing wheel, so a dropped connection never keeps a session
+ * for good.
+ */
+class SessionRegistry {
+
+    /**
+     * Result enum that is the outcome of a login.
+     */
+    enum Result {
+        ADMITTED, WAITING, ALREADY_LOGGED_IN
+    }
+
+    /**
+     * Session class that represents a logged in or waiting user.
+     */
+    private static class Session {
+        final String username;
+        final String token;
+        final Runnable onAdmitted;
+        volatile boolean admitted = false;
+        boolean queued = false;
+        boolean cancelled = false;
+        // Guarded by the session itself
+        Endpoint connection;
+        long generation = 0;
+        boolean closed = false;
+
+        Session(String username, String token, Runnable onAdmitted, Endpoint connection) {
+            this.username = username;
+            this.token = token;
+            this.onAdmitted = onAdmitted;
+            this.connection = connection;
+        }
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int maxSessions;
+    private final long leaseMillis;
+    private final Map<String, Session> users = new ConcurrentHashMap<>();
+    private final Map<String, Session> tokens = new ConcurrentHashMap<>();
+    private final Map<Endpoint, Session> connections = new ConcurrentHashMap<>();
+    // Held weakly, a connection is only looked up while requests of it are still running
+    private final Set<Endpoint> disconnected = Collections
+            .synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<Session> queue = new ArrayDeque<>();
+    private final AtomicInteger detached = new AtomicInteger();
+    private final TimingWheel leases;
+    private int active = 0;
+    private int waiting = 0;
+
+    /**
+     * Constructs a new SessionRegistry.
+     *
+     * @param maxSessions The maximum number of sessions at once
+     * @param leaseMillis How long the session of a closed connection can be
+     *                    resumed, in milliseconds, or 0 to end it at once
+     */
+    SessionRegistry(int maxSessions, long leaseMillis) {
+        this.maxSessions = maxSessions;
+        this.leaseMillis = leaseMillis;
+        this.leases = leaseMillis > 0 ? new TimingWheel("session-leases", Math.min(100, leaseMillis)) : null;
+    }
+
+    /**
+     * Logs a user in on a connection, or queues the login if every session is
+     * taken. A connection that was logged in as another user is logged out
+     * first. A session of the user that lost its connection and is still within
+     * its lease is taken over instead.
+     *
+     * @param c          The client connection
+     * @param username   The name of the user
+     * @param onAdmitted Runs when a queued login is admitted, without any lock
+     *                   held
+     * @return Whether the user was admitted, queued or was already logged in
+     */
+    Result login(Endpoint c, String username, Runnable onAdmitted) {
+        Session session = new Session(username, newToken(), onAdmitted, c);
+        Session existing = users.putIfAbsent(username, session);
+        if (existing != null) {
+            return existing.admitted && attach(existing, c, false) ? Result.ADMITTED : Result.ALREADY_LOGGED_IN;
+        }
+        tokens.put(session.token, session);
+        Session previous = connections.put(c, session);
+        if (previous != null) {
+            close(previous);
+        }
+        // The login was queued behind the close of its connection
+        if (disconnected.contains(c)) {
+            disconnect(c);
+        }
+        lock.lock();
+        try {
+            if (session.cancelled) {
+                // The connection was closed in the meantime
+                return Result.WAITING;
+            }
+            // Queue behind the earlier logins even if a session is free
+            if (queue.isEmpty() && active < maxSessions) {
+                active++;
+                session.admitted = true;
+                return Result.ADMITTED;
+            }
+            queue.add(session);
+            session.queued = true;
+            waiting++;
+            return Result.WAITING;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resumes, on a new connection, the session a token was given to. The session
+     * is taken from the connection it was on, if that one is still open.
+     *
+     * @param c     The client connection
+     * @param token The token of the session
+     * @return The name of the user, or null if the token is unknown or its
+     *         session has ended
+     */
+    String resume(Endpoint c, String token) {
+        Session session = tokens.get(token);
+        if (session == null || !session.admitted || !attach(session, c, true)) {
+            return null;
+        }
+        return session.username;
+    }
+
+    /**
+     * Moves a session to a connection, if it has not ended and either has no
+     * connection or may be taken from its own.
+     */
+    private boolean attach(Session session, Endpoint c, boolean takeOver) {
+        Endpoint old;
+        synchronized (session) {
+            old = session.connection;
+            if (session.closed || (old != null && !takeOver)) {
+                return false;
+            }
+            session.connection = c;
+            // Voids the reclaiming scheduled when it lost its connection
+            session.generation++;
+        }
+        if (old == null) {
+            detached.decrementAndGet();
+        } else if (old != c) {
+            connections.remove(old, session);
+        }
+        Session previous = connections.put(c, session);
+        if (previous != null && previous != session) {
+            close(previous);
+        }
+        // Put on its lease at once if the connection was closed meanwhile
+        if (disconnected.contains(c)) {
+            disconnect(c);
+        }
+        return true;
+    }
+
+    /**
+     * Logs out the user of a connection, or cancels its queued login, and admits
+     * the next waiting login if a session was freed.
+     *
+     * @param c The client connection
+     */
+    void logout(Endpoint c) {
+        Session session = connections.remove(c);
+        if (session != null) {
+            close(session);
+        }
+    }
+
+    /**
+     * Detaches the session of a connection that was closed. A queued login is
+     * cancelled at once, a session is kept for its lease and then reclaimed
+     * unless it was resumed. The connection is remembered, so that a login or
+     * resume of it that was still queued when it was closed is detached as soon
+     * as it is done.
+     *
+     * @param c The client connection
+     */
+    void disconnect(Endpoint c) {
+        // Marked before the lookup, so a login that binds it later sees the mark
+        disconnected.add(c);
+        Session session = connections.remove(c);
+        if (session == null) {
+            return;
+        }
+        long generation;
+        synchronized (session) {
+            if (session.connection != c || session.closed) {
+                return;
+            }
+            if (!session.admitted || leases == null) {
+                generation = -1;
+            } else {
+                session.connection = null;
+                generation = session.generation;
+                detached.incrementAndGet();
+            }
+        }
+        if (generation < 0) {
+            close(session);
+            return;
+        }
+        leases.schedule(System.currentTimeMillis() + leaseMillis, () -> {
+            synchronized (session) {
+                if (session.connection != null || session.generation != generation || session.closed) {
+                    return;
+                }
+                // Marked under the session, so no resume can slip in before it ends
+                session.closed = true;
+            }
+            detached.decrementAndGet();
+            end(session);
+        });
+    }
+
+    private void close(Session session) {
+        synchronized (session) {
+            if (session.closed) {
+                return;
+            }
+            session.closed = true;
+        }
+        end(session);
+    }
+
+    /**
+     * Frees the name, token and place of a session that was marked closed.
+     */
+    private void end(Session session) {
+        users.remove(session.username, session);
+        tokens.remove(session.token, session);
+        Session next = null;
+        lock.lock();
+        try {
+            if (!session.admitted) {
+                // Skipped when it reaches the head of the queue
+                session.cancelled = true;
+                if (session.queued) {
+                    waiting--;
+                }
+                return;
+            }
+            next = queue.poll();
+            while (next != null && next.cancelled) {
+                next = queue.poll();
+            }
+            if (next != null) {
+                // The freed session passes straight to the next waiter
+                waiting--;
+                next.admitted = true;
+            } else {
+                active--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (next != null) {
+            next.onAdmitted.run();
+        }
+    }
+
+    /**
+     * Returns the user logged in on a connection.
+     *
+     * @param c The client connection
+     * @return The name of the user, or null if the connection is not logged in
+     *         or is still waiting for a session
+     */
+    String usernameOf(Endpoint c) {
+        Session session = connections.get(c);
+        return session != null && session.admitted ? session.username : null;
+    }
+
+    /**
+     * Returns the token of the session of a connection.
+     *
+     * @param c The client connection
+     * @return The token, or null if the connection is not logged in
+     */
+    String tokenOf(Endpoint c) {
+        Session session = connections.get(c);
+        return session != null ? session.token : null;
+    }
+
+    /**
+     * Returns how long the session of a closed connection can be resumed.
+     *
+     * @return The lease in milliseconds
+     */
+    long leaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Returns the number of sessions that lost their connection and wait to be
+     * resumed.
+     *
+     * @return The number of detached sessions
+     */
+    int detached() {
+        return detached.get();
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Returns the number of sessions.
+     *
+     * @return The number of logged in users
+     */
+    int active() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of logins waiting for a session.
+     *
+     * @return The number of queued logins
+     */
+    int waiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
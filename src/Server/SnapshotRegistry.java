@@ -0,0 +1,152 @@
+package Server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * SnapshotRegistry class that keeps the timestamps of the snapshots being read,
+ * so that writers know which old versions can still be needed.
+ * <p>
+ * A reader claims a slot and publishes its timestamp there for the duration of
+ * its read, and then checks that the clock has not moved since it read it. A
+ * writer reads the clock before the slots, so if it missed a reader that was
+ * still publishing, that reader either read the same clock or sees it move and
+ * publishes again with a timestamp no older than the writer's.
+ * <p>
+ * Readers that find every slot taken do not wait, they read the clock and
+ * publish their timestamp under a lock instead, counted in a sorted map so that
+ * writers find the oldest of them at once. They announce themselves before
+ * reading the clock, so a writer that does not see them read the clock first.
+ */
+class SnapshotRegistry {
+
+    private static final long FREE = 0;
+
+    private final AtomicLong clock;
+    private final AtomicLongArray slots;
+    private final Object overflowLock = new Object();
+    private final List<Long> overflow = new ArrayList<>();
+    private final Deque<Integer> freeOverflow = new ArrayDeque<>();
+    private final TreeMap<Long, Integer> overflowTimestamps = new TreeMap<>();
+    private volatile int overflowReaders;
+
+    /**
+     * Constructs a new SnapshotRegistry.
+     *
+     * @param clock The commit clock of the store
+     * @param slots The number of slots, rounded up to a power of two
+     */
+    SnapshotRegistry(AtomicLong clock, int slots) {
+        this.clock = clock;
+        this.slots = new AtomicLongArray(Integer.highestOneBit(Math.max(1, slots - 1)) << 1);
+    }
+
+    /**
+     * Opens a snapshot at the latest commit timestamp.
+     *
+     * @return The slot of the snapshot, to be passed to {@link #timestamp} and
+     *         {@link #close}
+     */
+    int open() {
+        int mask = slots.length() - 1;
+        int start = (int) Thread.currentThread().threadId() & mask;
+        int i = start;
+        long timestamp = clock.get();
+        while (!slots.compareAndSet(i, FREE, timestamp)) {
+            i = (i + 1) & mask;
+            if (i == start) {
+                // Every slot is taken, publish the timestamp under the overflow lock instead
+                return openOverflow();
+            }
+        }
+        long now;
+        while ((now = clock.get()) != timestamp) {
+            // A write committed meanwhile, and a writer may have missed this slot
+            slots.set(i, now);
+            timestamp = now;
+        }
+        return i;
+    }
+
+    /**
+     * Opens a snapshot at the latest commit timestamp when every slot is taken.
+     *
+     * @return The overflow slot of the snapshot, past the last slot
+     */
+    private int openOverflow() {
+        synchronized (overflowLock) {
+            overflowReaders++;
+            long timestamp = clock.get();
+            overflowTimestamps.merge(timestamp, 1, Integer::sum);
+            Integer i = freeOverflow.poll();
+            if (i == null) {
+                i = overflow.size();
+                overflow.add(timestamp);
+            } else {
+                overflow.set(i, timestamp);
+            }
+            return slots.length() + i;
+        }
+    }
+
+    /**
+     * Returns the timestamp of an open snapshot.
+     *
+     * @param slot The slot of the snapshot
+     * @return The timestamp
+     */
+    long timestamp(int slot) {
+        if (slot < slots.length()) {
+            return slots.get(slot);
+        }
+        synchronized (overflowLock) {
+            return overflow.get(slot - slots.length());
+        }
+    }
+
+    /**
+     * Closes a snapshot.
+     *
+     * @param slot The slot of the snapshot
+     */
+    void close(int slot) {
+        if (slot < slots.length()) {
+            slots.set(slot, FREE);
+            return;
+        }
+        synchronized (overflowLock) {
+            int i = slot - slots.length();
+            overflowTimestamps.computeIfPresent(overflow.get(i), (t, n) -> n > 1 ? n - 1 : null);
+            freeOverflow.push(i);
+            overflowReaders--;
+        }
+    }
+
+    /**
+     * Returns the oldest timestamp any reader may read at, now or later.
+     *
+     * @return The oldest timestamp
+     */
+    long oldest() {
+        long oldest = clock.get();
+        for (int i = 0; i < slots.length(); i++) {
+            long timestamp = slots.get(i);
+            if (timestamp != FREE && timestamp < oldest) {
+                oldest = timestamp;
+            }
+        }
+        if (overflowReaders > 0) {
+            synchronized (overflowLock) {
+                if (!overflowTimestamps.isEmpty() && overflowTimestamps.firstKey() < oldest) {
+                    oldest = overflowTimestamps.firstKey();
+                }
+            }
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,284 @@
+package Server;
+
+import Common.Frame;
+import Common.Request;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Snapshotter class that periodically writes a compact image of the store and
+ * the credentials, so that a restart only replays the log written after it.
+ * <p>
+ * Taking a snapshot first rotates the write-ahead log, then writes the image
+ * while writers keep going, and finally deletes the log segments older than the
+ * rotation. Writes that land in the image while it is being written are also in
+ * the newer segments, and replaying them over the image is harmless because a
+ * put or a registration always overwrites the whole value.
+ * <p>
+ * A snapshot file is a sequence of frame records, split in segments of roughly
+ * equal size, followed by a footer with the offset of every segment, the end of
+ * the data, the number of segments and a magic number. On boot the newest
+ * snapshot is memory-mapped and its segments are decoded in parallel. The PUT
+ * records of every namespace carry its name, like those of the log.
+ * <p>
+ * Snapshots are stored next to the log and configured with the following system
+ * properties:
+ * <ul>
+ * <li>{@code server.snapshot.interval} - seconds between snapshots, 0 disables
+ * them (default 300)</li>
+ * <li>{@code server.snapshot.segmentSize} - target bytes per segment (default
+ * 64 MiB)</li>
+ * </ul>
+ */
+public class Snapshotter {
+
+    private static final int MAGIC = 0x5344534E;
+    private static final int RECORD_BYTES = 1 << 20;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private final Path dir;
+    private final WriteAheadLog wal;
+    private final Supplier<List<Store>> stores;
+    private final Supplier<Map<String, String>> credentials;
+    private final long segmentBytes;
+
+    /**
+     * Constructs a new Snapshotter.
+     *
+     * @param dir          The directory of the snapshots
+     * @param wal          The write-ahead log to rotate and truncate
+     * @param stores       Returns the stores of every namespace to snapshot
+     * @param credentials  Returns a copy of the credentials to snapshot
+     * @param segmentBytes The target size of each segment
+     */
+    public Snapshotter(Path dir, WriteAheadLog wal, Supplier<List<Store>> stores,
+            Supplier<Map<String, String>> credentials, long segmentBytes) {
+        this.dir = dir;
+        this.wal = wal;
+        this.stores = stores;
+        this.credentials = credentials;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Loads the newest snapshot, decoding its segments in parallel. The consumer
+     * may be called from several threads at once.
+     *
+     * @param consumer The consumer of the PUT and REGISTER records
+     * @return The first log segment to replay after the snapshot, or 0 if there
+     *         is no snapshot
+     * @throws IOException If an I/O error occurs
+     */
+    public long load(Consumer<Frame> consumer) throws IOException {
+        List<Long> snapshots = snapshots();
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        long segment = snapshots.get(snapshots.size() - 1);
+        try (FileChannel ch = FileChannel.open(snapshotPath(segment), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer tail = ByteBuffer.allocate(8);
+            ch.read(tail, size - 8);
+            tail.flip();
+            int count = tail.getInt();
+            if (tail.getInt() != MAGIC) {
+                throw new IOException("Corrupt snapshot " + snapshotPath(segment));
+            }
+            ByteBuffer table = ByteBuffer.allocate(8 * (count + 1));
+            ch.read(table, size - 8 - table.capacity());
+            table.flip();
+            long[] offsets = new long[count + 1];
+            for (int i = 0; i <= count; i++) {
+                offsets[i] = table.getLong();
+            }
+
+            IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, offsets[i],
+                            offsets[i + 1] - offsets[i]);
+                    while (buf.hasRemaining()) {
+                        Frame record = Frame.decode(buf);
+                        if (record == null) {
+                            throw new IOException("Truncated snapshot segment " + i);
+                        }
+                        consumer.accept(record);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return segment;
+    }
+
+    /**
+     * Takes a snapshot every given number of seconds on a background thread.
+     *
+     * @param intervalSeconds The seconds between snapshots
+     */
+    public void schedule(long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                takeSnapshot();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Takes a snapshot and truncates the log behind it.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public void takeSnapshot() throws IOException {
+        long segment;
+        try {
+            segment = wal.rotate().join();
+        } catch (CompletionException e) {
+            throw new IOException("Could not rotate the log", e.getCause());
+        }
+        Path tmp = dir.resolve(PREFIX + "tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer w = new Writer(ch);
+            for (Map.Entry<String, String> entry : credentials.get().entrySet()) {
+                w.add(Request.REGISTER, entry.getKey(), entry.getValue().getBytes());
+            }
+            for (Store store : stores.get()) {
+                w.flush();
+                w.store = store;
+                store.forEach((key, value, expires, version) -> w.add(Request.PUT, key, value, expires, version));
+            }
+            w.finish();
+            ch.force(true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(tmp, snapshotPath(segment), StandardCopyOption.ATOMIC_MOVE);
+
+        // Everything before the rotation is now in the snapshot
+        wal.truncate(segment);
+        for (long s : snapshots()) {
+            if (s < segment) {
+                Files.deleteIfExists(snapshotPath(s));
+            }
+        }
+    }
+
+    /**
+     * Writer class that groups pairs into records and records into segments.
+     */
+    private class Writer {
+        private final FileChannel ch;
+        private final List<Long> offsets = new ArrayList<>();
+        private final Map<String, byte[]> pairs = new LinkedHashMap<>();
+        private final Map<String, Long> expires = new HashMap<>();
+        private final Map<String, Long> versions = new HashMap<>();
+        private int tag;
+        private Store store;
+        private long recordBytes = 0;
+        private long position = 0;
+        private long segmentStart = 0;
+
+        Writer(FileChannel ch) {
+            this.ch = ch;
+            offsets.add(0L);
+        }
+
+        void add(int tag, String key, byte[] value) {
+            add(tag, key, value, 0, 0);
+        }
+
+        void add(int tag, String key, byte[] value, long expires, long version) {
+            if (tag != this.tag || recordBytes >= RECORD_BYTES) {
+                flush();
+            }
+            this.tag = tag;
+            pairs.put(key, value);
+            if (expires != 0) {
+                this.expires.put(key, expires);
+            }
+            versions.put(key, version);
+            recordBytes += key.length() + value.length + 6;
+        }
+
+        void flush() {
+            if (pairs.isEmpty()) {
+                return;
+            }
+            if (position - segmentStart >= segmentBytes) {
+                // Start a new segment at a record boundary
+                segmentStart = position;
+                offsets.add(position);
+            }
+            Frame record = tag == Request.PUT ? store.logRecord(pairs, expires, versions) : new Frame(tag, pairs);
+            ByteBuffer buf = record.encode(false);
+            write(buf);
+            pairs.clear();
+            expires.clear();
+            versions.clear();
+            recordBytes = 0;
+        }
+
+        void finish() {
+            flush();
+            ByteBuffer footer = ByteBuffer.allocate(8 * (offsets.size() + 1) + 8);
+            for (long offset : offsets) {
+                footer.putLong(offset);
+            }
+            footer.putLong(position);
+            footer.putInt(offsets.size());
+            footer.putInt(MAGIC);
+            footer.flip();
+            write(footer);
+        }
+
+        private void write(ByteBuffer buf) {
+            try {
+                while (buf.hasRemaining()) {
+                    position += ch.write(buf);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private List<Long> snapshots() throws IOException {
+        List<Long> list = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "[0-9]*" + SUFFIX)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                list.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        list.sort(null);
+        return list;
+    }
+
+    private Path snapshotPath(long segment) {
+        return dir.resolve(String.format("%s%016d%s", PREFIX, segment, SUFFIX));
+    }
+}
@@ -0,0 +1,1026 @@
+package Server;
+
+import Common.Frame;
+import Common.Request;
+import Common.Versioned;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Store class that holds the key-value pairs of the server.
+ * <p>
+ * Keys are spread over a fixed number of lock stripes, so requests on unrelated
+ * keys do not contend with each other. Writes on several keys lock every
+ * stripe they touch in ascending order, which keeps them atomic and free of
+ * deadlocks. Pending get-when requests are indexed by their condition key, so
+ * a write only checks the requests waiting on the keys it changed. If the store
+ * has a journal, such as the write-ahead log, every write is appended to it
+ * while its stripes are still locked, so the journal holds the writes of each key in the order they were
+ * applied. Values live either on the heap or, with a {@link ValueArena}, off
+ * the heap.
+ * <p>
+ * A store is also the keyspace of one namespace. Its log records start with a
+ * marker pair that names the namespace, and it can be given a quota on the bytes
+ * of its keys and values, checked on every put.
+ * <p>
+ * Keys are also kept in order in a concurrent skip list, next to the hash map
+ * that serves point reads, so that ranges of keys can be scanned without
+ * locking more than one stripe at a time.
+ * <p>
+ * Every key holds a short chain of versions. A write installs its versions
+ * under its stripes and stamps them all with one commit timestamp before
+ * releasing them, so reads take no locks: they read, at the latest commit
+ * timestamp, the newest version of each key that is not newer, and see every
+ * key of a write or none. Old versions are pruned, and their off-heap space
+ * released, by the next write of their key once no open snapshot can need them.
+ * The clock starts from the current time, so versions keep growing across
+ * restarts. The version of a key is logged with it and kept by recovery and by
+ * backups, so a version read before a restart or a failover still matches the
+ * key after it.
+ * <p>
+ * Keys may be given a deadline when they are written, logged with the write so
+ * that recovery and backups expire them too. A key reads as missing as soon as
+ * its deadline passes, and is removed soon after by a timing wheel shared by
+ * every store, which leaves a tombstone until no snapshot can read the expired
+ * version anymore. An expired key satisfies the get-when requests waiting for
+ * its condition to be the empty value, which a missing key also satisfies.
+ */
+public class Store {
+
+    private static final int DEFAULT_STRIPES = 64;
+    private static final String NAMESPACE_KEY = "\u0000namespace";
+    private static final String EXPIRES_KEY = "\u0000expires";
+    private static final String VERSIONS_KEY = "\u0000versions";
+    private static final byte[] MISSING = new byte[0];
+    private static final long TICK_MILLIS = Long.getLong("server.ttl.tickMillis", 10);
+    private static final TimingWheel EXPIRIES = new TimingWheel("expiry-wheel", TICK_MILLIS);
+
+    private final String name;
+    private final Map<String, Version> map = new ConcurrentHashMap<>();
+    private final NavigableSet<String> index = new ConcurrentSkipListSet<>();
+    private final ReentrantLock[] locks;
+    private final WatchRegistry watches = new WatchRegistry();
+    private final TrackingRegistry tracking = new TrackingRegistry();
+    private final Journal log;
+    private final ValueArena arena;
+    private final long quota;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(System.currentTimeMillis() << 20);
+    private final SnapshotRegistry snapshots = new SnapshotRegistry(clock, 64);
+    private final AtomicLong oldVersions = new AtomicLong();
+    private final LongAdder lockWaits = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+
+    /**
+     * Outcome class that is the result of a conditional write.
+     */
+    public static class Outcome {
+        /**
+         * Whether the value was written.
+         */
+        public final boolean applied;
+        /**
+         * The new value and version if the value was written, the current ones
+         * if not.
+         */
+        public final Versioned current;
+        /**
+         * Completed once the write is durable, or failed if it was refused.
+         */
+        public final CompletableFuture<Void> durable;
+
+        Outcome(boolean applied, Versioned current, CompletableFuture<Void> durable) {
+            this.applied = applied;
+            this.current = current;
+            this.durable = durable;
+        }
+    }
+
+    /**
+     * Commit class that is a write applied under its stripes.
+     */
+    private static class Commit {
+        final Map<String, byte[]> pairs;
+        final long timestamp;
+        final CompletableFuture<Void> durable;
+
+        Commit(Map<String, byte[]> pairs, long timestamp, CompletableFuture<Void> durable) {
+            this.pairs = pairs;
+            this.timestamp = timestamp;
+            this.durable = durable;
+        }
+    }
+
+    /**
+     * Constructs a new unnamed Store with the default number of stripes, no log,
+     * values on the heap and no quota.
+     */
+    public Store() {
+        this("", DEFAULT_STRIPES, null, null, 0);
+    }
+
+    /**
+     * Constructs a new Store with the default number of stripes.
+     *
+     * @param name  The name of the namespace of the store, empty for the global
+     *              one
+     * @param log   The journal of the writes, or null for none
+     * @param arena The off-heap arena of the values, or null to keep them on the
+     *              heap
+     * @param quota The maximum bytes of keys and values, or 0 for no limit
+     */
+    public Store(String name, Journal log, ValueArena arena, long quota) {
+        this(name, DEFAULT_STRIPES, log, arena, quota);
+    }
+
+    /**
+     * Constructs a new Store.
+     *
+     * @param name    The name of the namespace of the store, empty for the global
+     *                one
+     * @param stripes The number of lock stripes, rounded up to a power of two
+     * @param log     The journal of the writes, or null for none
+     * @param arena   The off-heap arena of the values, or null to keep them on
+     *                the heap
+     * @param quota   The maximum bytes of keys and values, or 0 for no limit
+     */
+    public Store(String name, int stripes, Journal log, ValueArena arena, long quota) {
+        this.name = name;
+        this.log = log;
+        this.arena = arena;
+        this.quota = quota;
+        int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Stores every key-value pair atomically and completes the get-when requests
+     * whose condition became true.
+     *
+     * @param pairs The key-value pairs to store
+     * @return A future completed once the write is durable, or immediately if the
+     *         store has no log, or failed if the write exceeds the quota
+     */
+    public CompletableFuture<Void> put(Map<String, byte[]> pairs) {
+        return put(pairs, null, true);
+    }
+
+    /**
+     * Stores every key-value pair atomically, some of them expiring at a
+     * deadline, and completes the get-when requests whose condition became
+     * true.
+     *
+     * @param pairs   The key-value pairs to store
+     * @param expires The deadline of the keys that expire, in milliseconds since
+     *                the epoch, or null if none does
+     * @return A future completed once the write is durable, or immediately if the
+     *         store has no log, or failed if the write exceeds the quota
+     */
+    public CompletableFuture<Void> put(Map<String, byte[]> pairs, Map<String, Long> expires) {
+        return put(pairs, expires, true);
+    }
+
+    /**
+     * Applies a put record received from the primary, ignoring the quota, which
+     * the primary has already checked.
+     *
+     * @param record The put record
+     * @return A future completed once the write is durable
+     */
+    CompletableFuture<Void> replicate(Frame record) {
+        Map<String, byte[]> pairs = new LinkedHashMap<>(record.keyValuePairs);
+        pairs.remove(NAMESPACE_KEY);
+        pairs.remove(EXPIRES_KEY);
+        pairs.remove(VERSIONS_KEY);
+        return write(pairs.keySet(), () -> pairs, expiresOf(record.keyValuePairs),
+                longsOf(record.keyValuePairs, VERSIONS_KEY), false).durable;
+    }
+
+    private CompletableFuture<Void> put(Map<String, byte[]> pairs, Map<String, Long> expires, boolean checkQuota) {
+        return write(pairs.keySet(), () -> pairs, expires, null, checkQuota).durable;
+    }
+
+    /**
+     * Replaces the value of a key only if it still holds the expected value and
+     * version, in one step under the stripe of the key.
+     *
+     * @param key             The key to write
+     * @param expected        The expected value, or null to not check the value
+     * @param expectedVersion The expected version, 0 for a key that must not
+     *                        exist, or -1 to not check the version
+     * @param value           The new value
+     * @return The new value and version if it was written, or the current ones
+     *         if not
+     */
+    public Outcome compareAndSet(String key, byte[] expected, long expectedVersion, byte[] value) {
+        return update(key, current -> (expected == null || Arrays.equals(current.getValue(), expected))
+                && (expectedVersion < 0 || current.getVersion() == expectedVersion) ? value : null);
+    }
+
+    /**
+     * Stores the value of a key only if the key does not exist.
+     *
+     * @param key   The key to write
+     * @param value The value
+     * @return The new value and version if it was written, or the current ones
+     *         if the key already existed
+     */
+    public Outcome putIfAbsent(String key, byte[] value) {
+        return update(key, current -> current.getValue() == null ? value : null);
+    }
+
+    /**
+     * Adds a delta to a counter, a key that holds a 64-bit number in decimal
+     * text, so that get-when conditions and plain reads see it as text. A key
+     * that does not exist counts as 0, and a counter keeps its deadline.
+     *
+     * @param key   The key of the counter
+     * @param delta The amount to add, negative to decrement
+     * @return The new value and version of the counter
+     * @throws IllegalStateException If the key does not hold a number or the
+     *                               counter would overflow
+     */
+    public Outcome increment(String key, long delta) {
+        return update(key, current -> {
+            byte[] bytes = current.getValue();
+            try {
+                long n = bytes != null ? Long.parseLong(new String(bytes, StandardCharsets.US_ASCII)) : 0;
+                return Long.toString(Math.addExact(n, delta)).getBytes(StandardCharsets.US_ASCII);
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("value is not a counter");
+            } catch (ArithmeticException e) {
+                throw new IllegalStateException("counter overflow");
+            }
+        });
+    }
+
+    /**
+     * Writes a key with a value computed from its current value and version,
+     * under its stripe. The key keeps its deadline, if it has one.
+     *
+     * @param key    The key to write
+     * @param update Returns the new value, or null to leave the key unchanged
+     * @return The outcome of the write
+     */
+    private Outcome update(String key, Function<Versioned, byte[]> update) {
+        Versioned[] current = new Versioned[1];
+        Map<String, Long> expires = new HashMap<>();
+        Commit commit = write(Collections.singleton(key), () -> {
+            Version head = live(map.get(key));
+            current[0] = versioned(head);
+            byte[] value = update.apply(current[0]);
+            if (head != null && head.expires != 0) {
+                expires.put(key, head.expires);
+            }
+            return value != null ? Collections.singletonMap(key, value) : null;
+        }, expires, null, true);
+        if (commit == null) {
+            return new Outcome(false, current[0], CompletableFuture.completedFuture(null));
+        }
+        return new Outcome(true, new Versioned(commit.pairs.get(key), commit.timestamp), commit.durable);
+    }
+
+    /**
+     * Stores the key-value pairs decided under the stripes of the keys
+     * atomically, and completes the get-when requests whose condition became
+     * true.
+     *
+     * @param keys       The keys that may be written
+     * @param decide     Returns the pairs to store, only for keys given, or null
+     *                   to store none. Runs with the stripes of the keys held
+     * @param expires    The deadline of the keys that expire, read once the
+     *                   pairs are decided, or null if none does
+     * @param versions   The versions the keys were written with on the primary,
+     *                   or null to version them with the commit timestamp
+     * @param checkQuota Whether the write is refused if it exceeds the quota
+     * @return The commit of the write, or null if nothing was stored
+     */
+    private Commit write(Collection<String> keys, Supplier<Map<String, byte[]>> decide, Map<String, Long> expires,
+            Map<String, Long> versions, boolean checkQuota) {
+        Map<String, byte[]> pairs;
+        long timestamp = 0;
+        CompletableFuture<Void> durable;
+        List<WatchRegistry.Watch> ready = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        Map<Consumer<Set<String>>, Set<String>> invalidations = new HashMap<>();
+        int[] stripes = stripesOf(keys);
+        lockAll(stripes);
+        try {
+            pairs = decide.get();
+            if (pairs == null) {
+                return null;
+            }
+            if (!reserve(pairs, checkQuota)) {
+                return new Commit(pairs, 0, CompletableFuture.failedFuture(
+                        new IllegalStateException("quota of " + quota + " bytes exceeded")));
+            }
+            List<Version> written = new ArrayList<>(pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                written.add(install(entry.getKey(), entry.getValue(), deadlineOf(expires, entry.getKey())));
+            }
+            if (versions != null && !versions.isEmpty()) {
+                // Keep the clock ahead of the versions, so later writes get newer ones
+                clock.accumulateAndGet(Collections.max(versions.values(), null), Math::max);
+            }
+            // Every key of the write becomes visible at the same timestamp
+            timestamp = clock.incrementAndGet();
+            Iterator<String> installed = pairs.keySet().iterator();
+            for (Version v : written) {
+                v.version = versionOf(versions, installed.next(), timestamp);
+                v.timestamp = timestamp;
+            }
+            long oldest = snapshots.oldest();
+            Iterator<String> writtenKeys = pairs.keySet().iterator();
+            for (Version v : written) {
+                prune(v, oldest);
+                schedule(writtenKeys.next(), v);
+            }
+            // Log while the stripes are held, so the log order matches the apply order
+            durable = log != null ? log.append(logRecord(pairs, expires, versions, timestamp))
+                    : CompletableFuture.completedFuture(null);
+            // Only check the watches registered on the keys that were written
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                tracking.invalidate(entry.getKey(), invalidations);
+                for (WatchRegistry.Watch w : watches.satisfied(entry.getKey(), entry.getValue())) {
+                    ready.add(w);
+                    // Keys outside the locked stripes are read after unlocking
+                    values.add(held(stripes, w.key) ? read(w.key) : null);
+                }
+            }
+        } finally {
+            unlockAll(stripes);
+        }
+        // Run the callbacks outside the locks, they may write to the network
+        for (Map.Entry<Consumer<Set<String>>, Set<String>> entry : invalidations.entrySet()) {
+            entry.getKey().accept(entry.getValue());
+        }
+        for (int i = 0; i < ready.size(); i++) {
+            WatchRegistry.Watch w = ready.get(i);
+            w.callback.accept(held(stripes, w.key) ? values.get(i) : get(w.key));
+        }
+        return new Commit(pairs, timestamp, durable);
+    }
+
+    /**
+     * Stores key-value pairs recovered from the log, without logging them again,
+     * with the versions they were logged with. Keys whose deadline passed while
+     * the server was down expire at once.
+     *
+     * @param pairs The key-value pairs to store, as in a log record
+     */
+    void restore(Map<String, byte[]> pairs) {
+        Map<String, Long> expires = expiresOf(pairs);
+        Map<String, Long> versions = longsOf(pairs, VERSIONS_KEY);
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            String key = entry.getKey();
+            if (!isMarker(key)) {
+                // The expiry wheel may already run on other keys of the stripe
+                int s = stripeOf(key);
+                locks[s].lock();
+                try {
+                    Version old = map.get(key);
+                    usedBytes.addAndGet(sizeOf(key, entry.getValue()) - sizeOf(key, old));
+                    Version v = install(key, entry.getValue(), deadlineOf(expires, key));
+                    long version = versionOf(versions, key, 0);
+                    clock.accumulateAndGet(version, Math::max);
+                    long timestamp = clock.incrementAndGet();
+                    v.version = version != 0 ? version : timestamp;
+                    v.timestamp = timestamp;
+                    // Nothing reads while recovering, the old version can go at once
+                    prune(v, v.timestamp);
+                    schedule(key, v);
+                } finally {
+                    locks[s].unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the log record of a put, with the namespace marker as its first
+     * pair, then the pairs, then, if some keys expire, their deadlines, one
+     * 8-byte number per key in the order of the pairs, 0 for the keys that do
+     * not expire, and last the versions of the keys, in the same layout.
+     *
+     * @param pairs    The key-value pairs written
+     * @param expires  The deadline of the keys that expire, or null if none does
+     * @param versions The version of every key
+     * @return The log record
+     */
+    Frame logRecord(Map<String, byte[]> pairs, Map<String, Long> expires, Map<String, Long> versions) {
+        return logRecord(pairs, expires, versions, 0);
+    }
+
+    private Frame logRecord(Map<String, byte[]> pairs, Map<String, Long> expires, Map<String, Long> versions,
+            long version) {
+        Map<String, byte[]> record = new LinkedHashMap<>();
+        record.put(NAMESPACE_KEY, name.getBytes(StandardCharsets.UTF_8));
+        record.putAll(pairs);
+        if (expires != null && !expires.isEmpty()) {
+            ByteBuffer deadlines = ByteBuffer.allocate(8 * pairs.size());
+            for (String key : pairs.keySet()) {
+                deadlines.putLong(deadlineOf(expires, key));
+            }
+            record.put(EXPIRES_KEY, deadlines.array());
+        }
+        ByteBuffer recorded = ByteBuffer.allocate(8 * pairs.size());
+        for (String key : pairs.keySet()) {
+            recorded.putLong(versionOf(versions, key, version));
+        }
+        record.put(VERSIONS_KEY, recorded.array());
+        return new Frame(Request.PUT, record);
+    }
+
+    /**
+     * Returns the deadlines of the keys of a put log record.
+     *
+     * @param record The key-value pairs of the log record
+     * @return The deadline of the keys that expire, or null if none does
+     */
+    private static Map<String, Long> expiresOf(Map<String, byte[]> record) {
+        return longsOf(record, EXPIRES_KEY);
+    }
+
+    /**
+     * Returns the numbers a marker of a put log record holds for its keys, one
+     * 8-byte number per key in the order of the pairs, leaving out the zeros.
+     *
+     * @param record The key-value pairs of the log record
+     * @param marker The key of the marker
+     * @return The number of every key that has one, or null if the record has
+     *         no such marker, as records logged before it existed
+     */
+    private static Map<String, Long> longsOf(Map<String, byte[]> record, String marker) {
+        byte[] bytes = record.get(marker);
+        if (bytes == null) {
+            return null;
+        }
+        ByteBuffer numbers = ByteBuffer.wrap(bytes);
+        Map<String, Long> longs = new HashMap<>();
+        for (String key : record.keySet()) {
+            if (!isMarker(key) && numbers.remaining() >= 8) {
+                long n = numbers.getLong();
+                if (n != 0) {
+                    longs.put(key, n);
+                }
+            }
+        }
+        return longs;
+    }
+
+    private static boolean isMarker(String key) {
+        return key.equals(NAMESPACE_KEY) || key.equals(EXPIRES_KEY) || key.equals(VERSIONS_KEY);
+    }
+
+    private static long deadlineOf(Map<String, Long> expires, String key) {
+        Long deadline = expires != null ? expires.get(key) : null;
+        return deadline != null ? deadline : 0;
+    }
+
+    private static long versionOf(Map<String, Long> versions, String key, long version) {
+        Long recorded = versions != null ? versions.get(key) : null;
+        return recorded != null ? recorded : version;
+    }
+
+    /**
+     * Returns the namespace of a put log record.
+     *
+     * @param record The log record
+     * @return The name of the namespace, empty for the global one
+     */
+    static String namespaceOf(Frame record) {
+        byte[] bytes = record.keyValuePairs.get(NAMESPACE_KEY);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : "";
+    }
+
+    /**
+     * Returns the name of the namespace of the store.
+     *
+     * @return The name, empty for the global namespace
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the bytes of the keys and values in the store.
+     *
+     * @return The used bytes
+     */
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Retrieves the value of a single key.
+     *
+     * @param key The key to retrieve
+     * @return The value, or null if the key does not exist
+     */
+    public byte[] get(String key) {
+        int slot = snapshots.open();
+        try {
+            Version v = visible(key, snapshots.timestamp(slot));
+            return v != null ? v.value.bytes() : null;
+        } finally {
+            snapshots.close(slot);
+        }
+    }
+
+    /**
+     * Retrieves the values of several keys atomically.
+     *
+     * @param keys The keys to retrieve
+     * @return The values found, missing keys are mapped to null
+     */
+    public Map<String, byte[]> get(Collection<String> keys) {
+        return get(keys, null);
+    }
+
+    /**
+     * Retrieves the values of several keys atomically, for a client that caches
+     * them. The tracker is called with the keys that were read once any of them
+     * is next written, so that the client can drop its stale copies.
+     *
+     * @param keys    The keys to retrieve
+     * @param tracker The invalidation callback of the client, or null if it does
+     *                not cache
+     * @return The values found, missing keys are mapped to null
+     */
+    public Map<String, byte[]> get(Collection<String> keys, Consumer<Set<String>> tracker) {
+        Map<String, byte[]> results = new HashMap<>();
+        getVersioned(keys, tracker).forEach((key, v) -> results.put(key, v.getValue()));
+        return results;
+    }
+
+    /**
+     * Retrieves the values of several keys and their versions from one
+     * snapshot, without blocking writers. Reads for a client that caches are
+     * done under the stripes of the keys instead, so that no write can slip in
+     * between reading a key and tracking it.
+     *
+     * @param keys    The keys to retrieve
+     * @param tracker The invalidation callback of the client, or null if it does
+     *                not cache
+     * @return The values and versions, in the order of the keys, with a null
+     *         value and version 0 for missing keys
+     */
+    public Map<String, Versioned> getVersioned(Collection<String> keys, Consumer<Set<String>> tracker) {
+        Map<String, Versioned> results = new LinkedHashMap<>();
+        if (tracker == null) {
+            int slot = snapshots.open();
+            try {
+                long timestamp = snapshots.timestamp(slot);
+                for (String key : keys) {
+                    results.put(key, versioned(visible(key, timestamp)));
+                }
+            } finally {
+                snapshots.close(slot);
+            }
+            return results;
+        }
+        int[] stripes = stripesOf(keys);
+        lockAll(stripes);
+        try {
+            for (String key : keys) {
+                results.put(key, versioned(live(map.get(key))));
+                // Track under the stripe, so no write can slip in unnoticed
+                tracking.track(key, tracker);
+            }
+        } finally {
+            unlockAll(stripes);
+        }
+        return results;
+    }
+
+    /**
+     * Retrieves the value of the requested key once the condition key holds the
+     * given value, a missing or expired key holding the empty value. The
+     * callback runs immediately if the condition already holds, otherwise it
+     * runs on the thread of the write or expiry that satisfies it.
+     *
+     * @param key       The key to retrieve
+     * @param keyCond   The condition key
+     * @param valueCond The condition value
+     * @param callback  The callback that receives the value, or null if the key
+     *                  does not exist
+     */
+    public void getWhen(String key, String keyCond, byte[] valueCond, Consumer<byte[]> callback) {
+        byte[] value = null;
+        int s = stripeOf(keyCond);
+        boolean sameStripe = stripeOf(key) == s;
+        lock(s);
+        try {
+            byte[] current = read(keyCond);
+            if (!Arrays.equals(current != null ? current : MISSING, valueCond)) {
+                watches.register(keyCond, new WatchRegistry.Watch(key, valueCond, callback));
+                return;
+            }
+            if (sameStripe) {
+                value = read(key);
+            }
+        } finally {
+            locks[s].unlock();
+        }
+        callback.accept(sameStripe ? value : get(key));
+    }
+
+    /**
+     * Iterates over the key-value pairs of a range of keys in key order, reading
+     * each value only when it is reached and without holding more than one
+     * stripe at a time. Pairs written while it runs may or may not be seen.
+     *
+     * @param from      The first key, or null to start with the smallest key
+     * @param inclusive Whether the first key itself is included
+     * @param to        The key at which the range ends, exclusive, or null for no
+     *                  end
+     * @param prefix    The prefix every key must start with, or null for any key
+     * @return The iterator of the pairs
+     */
+    public Iterator<Map.Entry<String, byte[]>> scan(String from, boolean inclusive, String to, String prefix) {
+        if (prefix != null && (from == null || from.compareTo(prefix) < 0)) {
+            from = prefix;
+            inclusive = true;
+        }
+        Iterator<String> keys = (from != null ? index.tailSet(from, inclusive) : index).iterator();
+        return new Iterator<>() {
+            private Map.Entry<String, byte[]> next = advance();
+
+            private Map.Entry<String, byte[]> advance() {
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if ((to != null && key.compareTo(to) >= 0) || (prefix != null && !key.startsWith(prefix))) {
+                        return null;
+                    }
+                    byte[] value = get(key);
+                    if (value != null) {
+                        return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Runs an action on every key-value pair that has not expired, without
+     * holding more than one stripe at a time. Pairs written while it runs may or
+     * may not be seen.
+     *
+     * @param action The action to run
+     */
+    void forEach(PairAction action) {
+        for (String key : map.keySet()) {
+            int slot = snapshots.open();
+            try {
+                Version v = visible(key, snapshots.timestamp(slot));
+                if (v != null) {
+                    action.accept(key, v.value.bytes(), v.expires, v.version);
+                }
+            } finally {
+                snapshots.close(slot);
+            }
+        }
+    }
+
+    /**
+     * PairAction interface that is an action run on a key-value pair, its
+     * deadline and its version.
+     */
+    interface PairAction {
+        /**
+         * Runs the action.
+         *
+         * @param key     The key
+         * @param value   The value
+         * @param expires The deadline of the key, or 0 if it does not expire
+         * @param version The version of the key
+         */
+        void accept(String key, byte[] value, long expires, long version);
+    }
+
+    /**
+     * Returns the off-heap arena of the store.
+     *
+     * @return The arena, or null if values are kept on the heap
+     */
+    public ValueArena getArena() {
+        return arena;
+    }
+
+    /**
+     * Returns the number of get-when requests waiting for their condition.
+     *
+     * @return The number of waiting requests
+     */
+    public int waiters() {
+        return watches.size();
+    }
+
+    /**
+     * Returns the number of times a stripe lock was contended.
+     *
+     * @return The number of contended acquisitions
+     */
+    public long lockWaits() {
+        return lockWaits.sum();
+    }
+
+    /**
+     * Returns the total time spent waiting for contended stripe locks.
+     *
+     * @return The waiting time in nanoseconds
+     */
+    public long lockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    /**
+     * Returns the number of keys in the store.
+     *
+     * @return The number of keys
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns the number of keys waiting for their deadline, in every store.
+     *
+     * @return The number of keys that expire
+     */
+    public static int expiring() {
+        return EXPIRIES.size();
+    }
+
+    /**
+     * Returns the number of versions kept besides the newest one of each key.
+     *
+     * @return The number of old versions
+     */
+    public long oldVersions() {
+        return oldVersions.get();
+    }
+
+    /**
+     * Installs a pending version of a key in front of its chain. The caller must
+     * hold the stripe of the key and stamp the version before releasing it.
+     */
+    private Version install(String key, byte[] bytes, long expires) {
+        Version head = map.get(key);
+        Version v = new Version(arena != null ? arena.allocate(bytes) : new Value.HeapValue(bytes), head, expires);
+        map.put(key, v);
+        if (head == null) {
+            index.add(key);
+        } else {
+            oldVersions.incrementAndGet();
+        }
+        return v;
+    }
+
+    /**
+     * Drops the versions of a chain that no snapshot can read anymore, which are
+     * those older than the newest version at or before the oldest snapshot. The
+     * caller must hold the stripe of the key.
+     *
+     * @param v      The newest version of the key
+     * @param oldest The oldest timestamp a reader may read at
+     */
+    private void prune(Version v, long oldest) {
+        while (v != null && v.timestamp > oldest) {
+            v = v.older;
+        }
+        if (v == null) {
+            return;
+        }
+        Version dead = v.older;
+        v.older = null;
+        for (; dead != null; dead = dead.older) {
+            if (dead.value != null) {
+                dead.value.release();
+            }
+            oldVersions.decrementAndGet();
+        }
+    }
+
+    /**
+     * Hands a version with a deadline to the expiry wheel. The caller must hold
+     * the stripe of the key.
+     */
+    private void schedule(String key, Version v) {
+        if (v.expires != 0) {
+            EXPIRIES.schedule(v.expires, () -> expire(key, v));
+        }
+    }
+
+    /**
+     * Expires a version that reached its deadline, unless it was overwritten
+     * since. A tombstone takes its place, so that the snapshots that can still
+     * read it keep doing so, and the get-when requests waiting for the key to be
+     * empty are completed. Runs on the thread of the expiry wheel.
+     */
+    private void expire(String key, Version v) {
+        List<WatchRegistry.Watch> ready;
+        Map<Consumer<Set<String>>, Set<String>> invalidations = new HashMap<>();
+        int s = stripeOf(key);
+        lock(s);
+        try {
+            if (map.get(key) != v) {
+                return;
+            }
+            Version tombstone = new Version(null, v, 0);
+            map.put(key, tombstone);
+            oldVersions.incrementAndGet();
+            usedBytes.addAndGet(-sizeOf(key, v));
+            tombstone.timestamp = clock.incrementAndGet();
+            reap(key, tombstone);
+            tracking.invalidate(key, invalidations);
+            ready = watches.satisfied(key, MISSING);
+        } finally {
+            locks[s].unlock();
+        }
+        for (Map.Entry<Consumer<Set<String>>, Set<String>> entry : invalidations.entrySet()) {
+            entry.getKey().accept(entry.getValue());
+        }
+        for (WatchRegistry.Watch w : ready) {
+            w.callback.accept(get(w.key));
+        }
+    }
+
+    /**
+     * Prunes the chain behind a tombstone and removes the key once the tombstone
+     * is all that is left, or tries again a tick later while a snapshot may
+     * still read the expired version. The caller must hold the stripe of the
+     * key.
+     */
+    private void reap(String key, Version tombstone) {
+        if (map.get(key) != tombstone) {
+            return;
+        }
+        prune(tombstone, snapshots.oldest());
+        if (tombstone.older == null) {
+            map.remove(key);
+            index.remove(key);
+            return;
+        }
+        EXPIRIES.schedule(System.currentTimeMillis() + TICK_MILLIS, () -> {
+            int s = stripeOf(key);
+            lock(s);
+            try {
+                reap(key, tombstone);
+            } finally {
+                locks[s].unlock();
+            }
+        });
+    }
+    /**
+     * Returns the version of a key visible at a timestamp, the newest one that
+     * is not newer. A pending version is waited for, as its write may have taken
+     * a timestamp that is not newer.
+     *
+     * @return The visible version, or null if the key did not exist then or has
+     *         expired since
+     */
+    private Version visible(String key, long timestamp) {
+        for (Version v = map.get(key); v != null; v = v.older) {
+            long committed = v.timestamp;
+            if (committed == Version.PENDING) {
+                // The writer stamps its versions before releasing the stripe
+                int s = stripeOf(key);
+                locks[s].lock();
+                locks[s].unlock();
+                committed = v.timestamp;
+            }
+            if (committed != Version.PENDING && committed <= timestamp) {
+                return live(v);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a version if it holds a value that has not expired.
+     *
+     * @return The version, or null for a tombstone or an expired version
+     */
+    private static Version live(Version v) {
+        return v != null && v.live(System.currentTimeMillis()) ? v : null;
+    }
+
+    private static Versioned versioned(Version v) {
+        return v != null ? new Versioned(v.value.bytes(), v.version) : new Versioned(null, 0);
+    }
+
+    /**
+     * Reads the newest value of a key. The caller must hold the stripe of the
+     * key.
+     */
+    private byte[] read(String key) {
+        Version v = live(map.get(key));
+        return v != null ? v.value.bytes() : null;
+    }
+
+    /**
+     * Accounts for the bytes a put adds and checks them against the quota. The
+     * caller must hold the stripes of the keys.
+     *
+     * @return False if the quota is checked and the put would exceed it
+     */
+    private boolean reserve(Map<String, byte[]> pairs, boolean checkQuota) {
+        long delta = 0;
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            delta += sizeOf(entry.getKey(), entry.getValue()) - sizeOf(entry.getKey(), map.get(entry.getKey()));
+        }
+        while (true) {
+            long used = usedBytes.get();
+            if (checkQuota && quota > 0 && delta > 0 && used + delta > quota) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, used + delta)) {
+                return true;
+            }
+        }
+    }
+
+    private static long sizeOf(String key, byte[] value) {
+        return value != null ? key.length() + value.length : 0;
+    }
+
+    private static long sizeOf(String key, Version v) {
+        return v != null && v.value != null ? key.length() + v.value.length() : 0;
+    }
+
+    private boolean held(int[] stripes, String key) {
+        return Arrays.binarySearch(stripes, stripeOf(key)) >= 0;
+    }
+
+    private int stripeOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (locks.length - 1);
+    }
+
+    /**
+     * Returns the distinct stripes of the given keys in ascending order.
+     */
+    private int[] stripesOf(Collection<String> keys) {
+        BitSet set = new BitSet(locks.length);
+        for (String key : keys) {
+            set.set(stripeOf(key));
+        }
+        return set.stream().toArray();
+    }
+
+    private void lockAll(int[] stripes) {
+        for (int s : stripes) {
+            lock(s);
+        }
+    }
+
+    /**
+     * Locks a stripe, counting the time spent waiting if it is contended.
+     */
+    private void lock(int s) {
+        if (locks[s].tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        locks[s].lock();
+        lockWaitNanos.add(System.nanoTime() - start);
+        lockWaits.increment();
+    }
+
+    private void unlockAll(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            locks[stripes[i]].unlock();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TimingWheel class that runs tasks at their deadlines with a hierarchical
+ * timing wheel.
+ * <p>
+ * Each level has 64 slots, the first spanning one tick each and every other
+ * level spanning a whole turn of the level below per slot. A task goes into the
+ * slot of the lowest level its deadline fits in, and is moved one level down
+ * when the slot of its level comes round, so scheduling, moving and running a
+ * task take constant time however many tasks are waiting. Tasks are handed to
+ * the wheel through a lock-free queue, and only the thread of the wheel touches
+ * the slots. Tasks cannot be cancelled, a task whose work became moot should
+ * check so itself when it runs. Deadlines beyond the span of the highest
+ * level, about 20 years with the default tick, are parked in it and placed
+ * again each time their slot comes round, so they never run early.
+ */
+class TimingWheel {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 6;
+
+    /**
+     * Task class that is a task waiting for its deadline.
+     */
+    private static class Task {
+        final long tick;
+        final Runnable action;
+
+        Task(long tick, Runnable action) {
+            this.tick = tick;
+            this.action = action;
+        }
+    }
+
+    private final long tickMillis;
+    private final Queue<Task> incoming = new ConcurrentLinkedQueue<>();
+    private final List<List<Task>> slots = new ArrayList<>(LEVELS * SLOTS);
+    private final AtomicInteger size = new AtomicInteger();
+    private long current;
+
+    /**
+     * Constructs a new TimingWheel and starts its thread.
+     *
+     * @param name       The name of the thread of the wheel
+     * @param tickMillis The length of a tick, the precision of the deadlines, in
+     *                   milliseconds
+     */
+    TimingWheel(String name, long tickMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.current = System.currentTimeMillis() / this.tickMillis;
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Schedules a task. It runs on the thread of the wheel, within a tick after
+     * its deadline, so it should not block.
+     *
+     * @param deadline The time at which the task runs, in milliseconds since the
+     *                 epoch
+     * @param action   The task
+     */
+    void schedule(long deadline, Runnable action) {
+        // Rounded up, so a task never runs before its deadline, without overflowing
+        long tick = deadline / tickMillis + (deadline % tickMillis != 0 ? 1 : 0);
+        incoming.add(new Task(tick, action));
+        size.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of tasks waiting for their deadline.
+     *
+     * @return The number of tasks
+     */
+    int size() {
+        return size.get();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Task> due = new ArrayList<>();
+            for (Task task = incoming.poll(); task != null; task = incoming.poll()) {
+                place(task, due);
+            }
+            // Catch up on the ticks missed while the thread was not running
+            long now = System.currentTimeMillis() / tickMillis;
+            while (current < now) {
+                advance(due);
+            }
+            for (Task task : due) {
+                size.decrementAndGet();
+                try {
+                    task.action.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the wheel one tick forward, moving the tasks of the higher slots
+     * that come round one level down and collecting those that are due.
+     */
+    private void advance(List<Task> due) {
+        current++;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((current & ((1L << (BITS * level)) - 1)) == 0) {
+                List<Task> slot = slots.set(index(level, current), new ArrayList<>());
+                for (Task task : slot) {
+                    place(task, due);
+                }
+            }
+        }
+        due.addAll(slots.set(index(0, current), new ArrayList<>()));
+    }
+
+    /**
+     * Puts a task in the slot of the lowest level its deadline fits in, or with
+     * the due tasks if the deadline has passed.
+     */
+    private void place(Task task, List<Task> due) {
+        long delta = task.tick - current;
+        if (delta <= 0) {
+            due.add(task);
+            return;
+        }
+        // Deadlines beyond the highest level wait in it and are placed again
+        int level = Math.min((63 - Long.numberOfLeadingZeros(delta)) / BITS, LEVELS - 1);
+        slots.get(index(level, task.tick)).add(task);
+    }
+
+    private static int index(int level, long tick) {
+        return level * SLOTS + (int) ((tick >>> (BITS * level)) & (SLOTS - 1));
+    }
+}
@@ -0,0 +1,46 @@
+package Server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * TrackingRegistry class that remembers which client caches hold which keys, so
+ * that a write can tell them to drop their copies.
+ * <p>
+ * A client is tracked from the read that fills its cache until the next write
+ * of the key, and is then forgotten until it reads the key again. Like the
+ * watches, the trackers of a key are only accessed while holding the store
+ * stripe of that key.
+ */
+class TrackingRegistry {
+
+    private final Map<String, Set<Consumer<Set<String>>>> trackers = new ConcurrentHashMap<>();
+
+    /**
+     * Tracks a key for a client. The caller must hold the stripe of the key.
+     *
+     * @param key     The key read by the client
+     * @param tracker The invalidation callback of the client
+     */
+    void track(String key, Consumer<Set<String>> tracker) {
+        trackers.computeIfAbsent(key, k -> new HashSet<>()).add(tracker);
+    }
+
+    /**
+     * Removes the trackers of a key that was written and adds the key to the
+     * invalidations of each of them. The caller must hold the stripe of the key.
+     *
+     * @param key           The key that was written
+     * @param invalidations The keys to invalidate per tracker
+     */
+    void invalidate(String key, Map<Consumer<Set<String>>, Set<String>> invalidations) {
+        Set<Consumer<Set<String>>> set = trackers.remove(key);
+        if (set == null) {
+            return;
+        }
+        for (Consumer<Set<String>> tracker : set) {
+            invalidations.computeIfAbsent(tracker, t -> new LinkedHashSet<>()).add(key);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package Server;
+
+/**
+ * Value class that represents the bytes of a value held by the store, either on
+ * the heap or in an off-heap arena.
+ */
+abstract class Value {
+
+    /**
+     * Returns the bytes of the value. For off-heap values this is a fresh copy.
+     *
+     * @return The bytes of the value
+     */
+    abstract byte[] bytes();
+
+    /**
+     * Returns the length of the value in bytes.
+     *
+     * @return The length of the value
+     */
+    abstract int length();
+
+    /**
+     * Releases the space of the value once it has been overwritten and no
+     * snapshot can read it anymore. The caller must hold the stripe of its key.
+     */
+    void release() {
+    }
+
+    /**
+     * HeapValue class that holds the value in an on-heap array.
+     */
+    static class HeapValue extends Value {
+        private final byte[] bytes;
+
+        HeapValue(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        byte[] bytes() {
+            return bytes;
+        }
+
+        @Override
+        int length() {
+            return bytes.length;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ValueArena class that keeps value bytes off the heap, in large direct-buffer
+ * slabs, so that millions of long-lived values do not weigh on the garbage
+ * collector.
+ * <p>
+ * Values are rounded up to a power-of-two size class. Each class carves its
+ * blocks out of its own slabs and keeps the blocks of overwritten values on a
+ * free list for reuse, under its own lock. Values larger than a slab get a
+ * dedicated direct buffer. The store only keeps a small handle per value.
+ * <p>
+ * The arena is enabled with {@code -Dserver.offheap=true}, and the slab size is
+ * set with {@code -Dserver.offheap.slabSize} (default 4 MiB).
+ */
+public class ValueArena {
+
+    private static final int MIN_SHIFT = 5;
+
+    private final int slabSize;
+    private final SizeClass[] classes;
+    private final ReentrantLock slabLock = new ReentrantLock();
+    private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+    private int slabCount = 0;
+    private final LongAdder usedBytes = new LongAdder();
+    private final LongAdder blockBytes = new LongAdder();
+    private final LongAdder largeBytes = new LongAdder();
+
+    /**
+     * SizeClass class that allocates the blocks of one size.
+     */
+    private class SizeClass {
+        final int blockSize;
+        final ReentrantLock lock = new ReentrantLock();
+        long[] free = new long[64];
+        int freeCount = 0;
+        int slab = -1;
+        int offset = 0;
+
+        SizeClass(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        long allocate() {
+            lock.lock();
+            try {
+                if (freeCount > 0) {
+                    return free[--freeCount];
+                }
+                if (slab < 0 || offset + blockSize > slabSize) {
+                    slab = newSlab();
+                    offset = 0;
+                }
+                long handle = ((long) slab << 32) | offset;
+                offset += blockSize;
+                return handle;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void free(long handle) {
+            lock.lock();
+            try {
+                if (freeCount == free.length) {
+                    free = Arrays.copyOf(free, free.length * 2);
+                }
+                free[freeCount++] = handle;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Block class that is a value stored in a block of a slab.
+     */
+    private class Block extends Value {
+        private final long handle;
+        private final int length;
+        private final SizeClass sizeClass;
+
+        Block(long handle, int length, SizeClass sizeClass) {
+            this.handle = handle;
+            this.length = length;
+            this.sizeClass = sizeClass;
+        }
+
+        @Override
+        byte[] bytes() {
+            byte[] bytes = new byte[length];
+            slabs[(int) (handle >>> 32)].get((int) handle, bytes);
+            return bytes;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        void release() {
+            sizeClass.free(handle);
+            usedBytes.add(-length);
+            blockBytes.add(-sizeClass.blockSize);
+        }
+    }
+
+    /**
+     * Large class that is a value stored in its own direct buffer.
+     */
+    private class Large extends Value {
+        private final ByteBuffer buffer;
+
+        Large(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        byte[] bytes() {
+            byte[] bytes = new byte[buffer.capacity()];
+            buffer.get(0, bytes);
+            return bytes;
+        }
+
+        @Override
+        int length() {
+            return buffer.capacity();
+        }
+
+        @Override
+        void release() {
+            usedBytes.add(-buffer.capacity());
+            largeBytes.add(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Constructs a new ValueArena.
+     *
+     * @param slabSize The size of each slab, rounded up to a power of two
+     */
+    public ValueArena(int slabSize) {
+        this.slabSize = Integer.highestOneBit(Math.max(1 << MIN_SHIFT, slabSize - 1)) << 1;
+        int n = Integer.numberOfTrailingZeros(this.slabSize) - MIN_SHIFT + 1;
+        this.classes = new SizeClass[n];
+        for (int i = 0; i < n; i++) {
+            classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+    }
+
+    /**
+     * Creates a ValueArena configured from the system properties.
+     *
+     * @return The configured arena, or null if off-heap storage is disabled
+     */
+    public static ValueArena fromSystemProperties() {
+        if (!Boolean.getBoolean("server.offheap")) {
+            return null;
+        }
+        return new ValueArena(Integer.getInteger("server.offheap.slabSize", 4 << 20));
+    }
+
+    /**
+     * Copies a value into the arena.
+     *
+     * @param bytes The bytes of the value
+     * @return The handle of the stored value
+     */
+    Value allocate(byte[] bytes) {
+        usedBytes.add(bytes.length);
+        if (bytes.length > slabSize) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(0, bytes);
+            largeBytes.add(bytes.length);
+            return new Large(buffer);
+        }
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, bytes.length) - 1));
+        SizeClass sizeClass = classes[shift - MIN_SHIFT];
+        long handle = sizeClass.allocate();
+        slabs[(int) (handle >>> 32)].put((int) handle, bytes);
+        blockBytes.add(sizeClass.blockSize);
+        return new Block(handle, bytes.length, sizeClass);
+    }
+
+    private int newSlab() {
+        slabLock.lock();
+        try {
+            ByteBuffer[] current = slabs;
+            if (slabCount == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[slabCount] = ByteBuffer.allocateDirect(slabSize);
+            // Publish the slab before any handle into it can be seen
+            slabs = current;
+            return slabCount++;
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the bytes reserved off the heap, in slabs and large values.
+     *
+     * @return The reserved bytes
+     */
+    public long reservedBytes() {
+        slabLock.lock();
+        try {
+            return (long) slabCount * slabSize + largeBytes.sum();
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the bytes of the live values.
+     *
+     * @return The used bytes
+     */
+    public long usedBytes() {
+        return usedBytes.sum();
+    }
+
+    /**
+     * Returns a summary of the occupancy of the arena.
+     *
+     * @return The occupancy summary
+     */
+    @Override
+    public String toString() {
+        long reserved = reservedBytes();
+        long used = usedBytes();
+        long blocks = blockBytes.sum() + largeBytes.sum();
+        return String.format("arena: %d bytes reserved, %d in blocks, %d used (%.1f%%)", reserved, blocks, used,
+                reserved == 0 ? 0.0 : 100.0 * used / reserved);
+    }
+}
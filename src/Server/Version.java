@@ -0,0 +1,55 @@
+package Server;
+
+/**
+ * Version class that is one version of the value of a key, in a chain from the
+ * newest to the oldest version still needed by a reader.
+ * <p>
+ * A version is created pending, while the write that creates it still holds the
+ * stripes of its keys, and is given the commit timestamp of the write before
+ * they are released, so that every key of the write becomes visible at the same
+ * timestamp.
+ * <p>
+ * The version clients see is the commit timestamp of the write on the node that
+ * first applied it, which recovery and backups keep as is, while the timestamp
+ * orders the versions of the local store.
+ * <p>
+ * A version may expire at a deadline, after which it reads as missing, and a
+ * version without a value is the tombstone left by the expiry of a key.
+ */
+final class Version {
+
+    /**
+     * The timestamp of a version whose write has not committed yet.
+     */
+    static final long PENDING = 0;
+
+    final Value value;
+    final long expires;
+    volatile long timestamp = PENDING;
+    long version; // Written before the timestamp, which publishes it
+    volatile Version older;
+
+    /**
+     * Constructs a new pending Version.
+     *
+     * @param value   The value, or null for a tombstone
+     * @param older   The previous version of the key, or null if there is none
+     * @param expires The time at which the version expires, in milliseconds
+     *                since the epoch, or 0 if it does not
+     */
+    Version(Value value, Version older, long expires) {
+        this.value = value;
+        this.older = older;
+        this.expires = expires;
+    }
+
+    /**
+     * Returns whether the version holds a value that has not expired.
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @return False for a tombstone or an expired version
+     */
+    boolean live(long now) {
+        return value != null && (expires == 0 || expires > now);
+    }
+}
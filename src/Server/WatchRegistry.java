@@ -0,0 +1,85 @@
+package Server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * WatchRegistry class that indexes pending get-when requests by their condition
+ * key.
+ * <p>
+ * The list of watches of a key is only accessed while holding the store stripe
+ * of that key, so a write only needs to check the watches of the keys it has
+ * changed.
+ */
+class WatchRegistry {
+
+    private final Map<String, List<Watch>> watches = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Watch class that represents a get-when request waiting for its condition.
+     */
+    static class Watch {
+        final String key;
+        final byte[] valueCond;
+        final Consumer<byte[]> callback;
+
+        Watch(String key, byte[] valueCond, Consumer<byte[]> callback) {
+            this.key = key;
+            this.valueCond = valueCond;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * Registers a watch on a condition key. The caller must hold the stripe of the
+     * key.
+     *
+     * @param keyCond The condition key
+     * @param watch   The watch to register
+     */
+    void register(String keyCond, Watch watch) {
+        watches.computeIfAbsent(keyCond, k -> new ArrayList<>()).add(watch);
+        count.incrementAndGet();
+    }
+
+    /**
+     * Removes and returns the watches of a key whose condition is met by its new
+     * value. The caller must hold the stripe of the key.
+     *
+     * @param keyCond The key that was written
+     * @param value   The new value of the key
+     * @return The satisfied watches, possibly empty
+     */
+    List<Watch> satisfied(String keyCond, byte[] value) {
+        List<Watch> list = watches.get(keyCond);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        List<Watch> ready = new ArrayList<>();
+        Iterator<Watch> it = list.iterator();
+        while (it.hasNext()) {
+            Watch w = it.next();
+            if (Arrays.equals(value, w.valueCond)) {
+                ready.add(w);
+                it.remove();
+            }
+        }
+        if (list.isEmpty()) {
+            watches.remove(keyCond);
+        }
+        count.addAndGet(-ready.size());
+        return ready;
+    }
+
+    /**
+     * Returns the number of pending watches.
+     *
+     * @return The number of watches
+     */
+    int size() {
+        return count.get();
+    }
+}
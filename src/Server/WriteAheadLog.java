@@ -0,0 +1,416 @@
+package Server;
+
+import Common.Frame;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog class that records every applied write in an append-only log, so
+ * that the server can rebuild its state after a restart.
+ * <p>
+ * Records are frames, each followed by the CRC32 of its bytes. Writers only
+ * queue their records, and a single log thread writes everything queued so far
+ * with one write and at most one fsync, completing the futures of the whole
+ * batch at once (group commit). The log is split in numbered segment files. A
+ * new segment is started every time the server starts and every time the log is
+ * rotated for a snapshot, after which the older segments can be deleted. An
+ * I/O error may leave a torn record behind, which would end the replay of
+ * everything written after it, so the first one fails the log for good.
+ * <p>
+ * The log is configured with the following system properties:
+ * <ul>
+ * <li>{@code server.wal} - directory of the log, the log is disabled if unset</li>
+ * <li>{@code server.wal.fsync} - {@code always} (default), {@code interval} or
+ * {@code never}</li>
+ * <li>{@code server.wal.fsyncInterval} - milliseconds between fsyncs in
+ * interval mode (default 100)</li>
+ * </ul>
+ */
+public class WriteAheadLog implements Journal, AutoCloseable {
+
+    /**
+     * When the log forces its writes to disk.
+     */
+    public enum FsyncPolicy {
+        /** Every batch is synced before its writes are acknowledged. */
+        ALWAYS,
+        /** The log is synced at most once per interval, writes are acknowledged once written. */
+        INTERVAL,
+        /** The log is never synced explicitly, the OS decides when data reaches the disk. */
+        NEVER
+    }
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path dir;
+    private final FsyncPolicy policy;
+    private final long intervalNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private List<Pending> pending = new ArrayList<>();
+    private boolean closed = false;
+    private IOException failure = null;
+    private FileChannel channel;
+    private long segment;
+
+    private static class Pending {
+        final Frame record; // null for a rotation marker
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        long segment;
+
+        Pending(Frame record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Constructs a new WriteAheadLog.
+     *
+     * @param dir            The directory of the log segments
+     * @param policy         The fsync policy
+     * @param intervalMillis The milliseconds between fsyncs in interval mode
+     * @throws IOException If the directory cannot be created
+     */
+    public WriteAheadLog(Path dir, FsyncPolicy policy, long intervalMillis) throws IOException {
+        this.dir = dir;
+        this.policy = policy;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Creates a WriteAheadLog configured from the system properties.
+     *
+     * @return The configured log, or null if the log is disabled
+     * @throws IOException If the directory cannot be created
+     */
+    public static WriteAheadLog fromSystemProperties() throws IOException {
+        String dir = System.getProperty("server.wal");
+        if (dir == null) {
+            return null;
+        }
+        FsyncPolicy policy = FsyncPolicy.valueOf(System.getProperty("server.wal.fsync", "always").toUpperCase());
+        return new WriteAheadLog(Paths.get(dir), policy, Long.getLong("server.wal.fsyncInterval", 100));
+    }
+
+    /**
+     * Returns the directory of the log.
+     *
+     * @return The directory
+     */
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Replays every record of the existing segments from a given segment on,
+     * oldest first. Must be called before {@link #start()}. A torn or corrupt
+     * record ends the replay of its segment, since nothing after it was ever
+     * acknowledged.
+     *
+     * @param fromSegment The first segment to replay
+     * @param consumer    The consumer of the records
+     * @throws IOException If an I/O error occurs
+     */
+    public void replay(long fromSegment, Consumer<Frame> consumer) throws IOException {
+        for (long s : segments()) {
+            if (s < fromSegment) {
+                continue;
+            }
+            Path path = segmentPath(s);
+            long remaining = Files.size(path);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                while (true) {
+                    Frame record = readRecord(in, remaining);
+                    if (record == null) {
+                        break;
+                    }
+                    remaining -= record.encodedLength() + 4;
+                    consumer.accept(record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a new segment and starts the log thread.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    public void start() throws IOException {
+        List<Long> existing = segments();
+        openSegment(existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1);
+        Thread t = new Thread(this::run, "wal-writer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queues a record to be written to the log.
+     *
+     * @param record The record to write
+     * @return A future completed once the record is durable according to the
+     *         fsync policy, or exceptionally if it could not be written or the
+     *         log failed before
+     */
+    @Override
+    public CompletableFuture<Void> append(Frame record) {
+        Pending p = new Pending(record);
+        lock.lock();
+        try {
+            if (failure != null) {
+                p.future.completeExceptionally(failure);
+                return p.future;
+            }
+            if (closed) {
+                p.future.completeExceptionally(new IOException("Log closed"));
+                return p.future;
+            }
+            pending.add(p);
+            if (pending.size() == 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return p.future;
+    }
+
+    /**
+     * Closes the current segment and starts a new one. Every record appended
+     * before the call ends up in an older segment, and every record appended
+     * after it in the new one or later.
+     *
+     * @return A future completed with the number of the new segment
+     */
+    public CompletableFuture<Long> rotate() {
+        Pending marker = new Pending(null);
+        lock.lock();
+        try {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Log closed"));
+            }
+            pending.add(marker);
+            if (pending.size() == 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return marker.future.thenApply(v -> marker.segment);
+    }
+
+    /**
+     * Deletes every segment older than the given one.
+     *
+     * @param beforeSegment The oldest segment to keep
+     * @throws IOException If an I/O error occurs
+     */
+    public void truncate(long beforeSegment) throws IOException {
+        for (long s : segments()) {
+            if (s < beforeSegment) {
+                Files.deleteIfExists(segmentPath(s));
+            }
+        }
+    }
+
+    /**
+     * Log thread loop, writes and syncs the queued records in batches.
+     */
+    private void run() {
+        long lastSync = System.nanoTime();
+        boolean dirty = false;
+        while (true) {
+            List<Pending> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    if (dirty && policy == FsyncPolicy.INTERVAL) {
+                        long wait = intervalNanos - (System.nanoTime() - lastSync);
+                        if (wait <= 0) {
+                            break;
+                        }
+                        notEmpty.awaitNanos(wait);
+                    } else {
+                        notEmpty.await();
+                    }
+                }
+                if (pending.isEmpty() && closed) {
+                    break;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                // Write the records between rotation markers into their segment
+                int from = 0;
+                for (int i = 0; i <= batch.size(); i++) {
+                    if (i < batch.size() && batch.get(i).record != null) {
+                        continue;
+                    }
+                    if (i > from) {
+                        write(batch.subList(from, i));
+                        dirty = true;
+                    }
+                    if (i < batch.size()) {
+                        channel.force(false);
+                        channel.close();
+                        openSegment(segment + 1);
+                        batch.get(i).segment = segment;
+                        dirty = false;
+                    }
+                    from = i + 1;
+                }
+                long now = System.nanoTime();
+                if (policy == FsyncPolicy.ALWAYS
+                        || (policy == FsyncPolicy.INTERVAL && now - lastSync >= intervalNanos)) {
+                    channel.force(false);
+                    lastSync = now;
+                    dirty = false;
+                }
+                for (Pending p : batch) {
+                    p.future.complete(null);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                fail(e, batch);
+                break;
+            }
+        }
+        try {
+            if (failure == null && policy != FsyncPolicy.NEVER) {
+                channel.force(false);
+            }
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Fails the log after an I/O error, completing exceptionally the batch being
+     * written, every record queued since and every record appended from now on.
+     */
+    private void fail(IOException e, List<Pending> batch) {
+        List<Pending> queued;
+        lock.lock();
+        try {
+            failure = e;
+            queued = pending;
+            pending = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        for (Pending p : batch) {
+            p.future.completeExceptionally(e);
+        }
+        for (Pending p : queued) {
+            p.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Writes a batch of records with a single write.
+     */
+    private void write(List<Pending> batch) throws IOException {
+        int total = 0;
+        for (Pending p : batch) {
+            total += p.record.encodedLength() + 4;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        CRC32 crc = new CRC32();
+        for (Pending p : batch) {
+            int start = buf.position();
+            p.record.encode(buf);
+            crc.reset();
+            crc.update(buf.array(), start, buf.position() - start);
+            buf.putInt((int) crc.getValue());
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Reads the next record of a segment.
+     *
+     * @return The record, or null at the end of the segment or at a torn record
+     */
+    private static Frame readRecord(DataInputStream in, long remaining) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > remaining - 8) {
+                return null;
+            }
+            byte[] bytes = new byte[4 + length];
+            ByteBuffer.wrap(bytes).putInt(length);
+            in.readFully(bytes, 4, length);
+            int checksum = in.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+            return Frame.decode(ByteBuffer.wrap(bytes));
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void openSegment(long s) throws IOException {
+        segment = s;
+        channel = FileChannel.open(segmentPath(s), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> list = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                list.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        list.sort(null);
+        return list;
+    }
+
+    private Path segmentPath(long s) {
+        return dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, s, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Closes the log. Records already queued are still written and synced, new
+     * ones are rejected.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
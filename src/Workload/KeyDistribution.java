@@ -0,0 +1,109 @@
+package Workload;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * KeyDistribution class that picks the keys of a workload among a fixed number
+ * of records.
+ */
+public abstract class KeyDistribution {
+
+    /**
+     * Picks the next record.
+     *
+     * @return The index of the record, between 0 and the number of records
+     */
+    public abstract long next();
+
+    /**
+     * Creates a distribution by name.
+     *
+     * @param name     {@code uniform} or {@code zipfian}
+     * @param records  The number of records
+     * @param constant The zipfian constant, the larger the more skewed
+     * @return The distribution
+     */
+    public static KeyDistribution of(String name, long records, double constant) {
+        switch (name) {
+            case "uniform":
+                return new Uniform(records);
+            case "zipfian":
+                return new Zipfian(records, constant);
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + name);
+        }
+    }
+
+    /**
+     * Uniform class where every record is equally likely.
+     */
+    private static class Uniform extends KeyDistribution {
+        private final long records;
+
+        Uniform(long records) {
+            this.records = records;
+        }
+
+        @Override
+        public long next() {
+            return ThreadLocalRandom.current().nextLong(records);
+        }
+    }
+
+    /**
+     * Zipfian class where the popularity of a record decreases with a power of
+     * its rank, using the generator of Gray et al., "Quickly Generating
+     * Billion-Record Synthetic Databases". Ranks are scattered over the records
+     * by a hash, so that the popular records are not all next to each other.
+     */
+    private static class Zipfian extends KeyDistribution {
+        private final long records;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        Zipfian(long records, double theta) {
+            this.records = records;
+            this.theta = theta;
+            this.zetan = zeta(records, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / records, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        @Override
+        public long next() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = (long) (records * Math.pow(eta * u - eta + 1, alpha));
+            }
+            return Math.floorMod(scatter(Math.min(rank, records - 1)), records);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        /**
+         * Hashes a rank with 64-bit FNV-1a over its bytes.
+         */
+        private static long scatter(long rank) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < 8; i++) {
+                h ^= (rank >>> (i * 8)) & 0xff;
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package Workload;
+
+import Client.Client;
+import Common.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Workload class that generates load against the server and reports the
+ * latency percentiles of every operation type.
+ * <p>
+ * Operations are reads and updates in a YCSB-style mix, on keys picked from a
+ * fixed number of records with a uniform or zipfian distribution. In the
+ * closed-loop mode every client sends its next operation as soon as the
+ * previous one is answered. In the open-loop mode operations are started at a
+ * fixed total rate whatever the response times, using the asynchronous client
+ * API, and each latency is measured from the time the operation was due, so
+ * that a slow server cannot hide its queueing delay. Operations of the warm-up
+ * are not recorded.
+ * <p>
+ * Options are given as {@code --name=value}:
+ * <ul>
+ * <li>{@code host}, {@code port} - the server (default localhost:8080)</li>
+ * <li>{@code clients} - connections, one thread each in closed loop (default
+ * 16)</li>
+ * <li>{@code records} - number of keys (default 100000)</li>
+ * <li>{@code workload} - {@code a} (50% reads), {@code b} (95% reads, default)
+ * or {@code c} (reads only)</li>
+ * <li>{@code reads} - fraction of reads, overrides the workload</li>
+ * <li>{@code distribution} - {@code zipfian} (default) or {@code uniform}</li>
+ * <li>{@code zipfian} - the zipfian constant (default 0.99)</li>
+ * <li>{@code valueSize} - bytes per value (default 1000)</li>
+ * <li>{@code batch} - keys per operation, more than 1 uses multi-get and
+ * multi-put (default 1)</li>
+ * <li>{@code rate} - operations per second for the open loop, 0 for the closed
+ * loop (default 0)</li>
+ * <li>{@code warmup}, {@code duration} - seconds (default 10 and 30)</li>
+ * <li>{@code load} - whether to write every record first (default true)</li>
+ * <li>{@code compress} - the value size from which values are compressed on
+ * the wire, 0 to send them as is (default 0)</li>
+ * <li>{@code stats} - whether to print the metrics of the server at the end
+ * (default false)</li>
+ * </ul>
+ */
+public class Workload {
+
+    private static final int LOAD_BATCH = 100;
+    private static final int MAX_OUTSTANDING = 100000;
+    private static final String[] OPERATIONS = { "READ", "UPDATE" };
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final long records;
+    private final double reads;
+    private final KeyDistribution keys;
+    private final String distribution;
+    private final int valueSize;
+    private final int batch;
+    private final double rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final boolean load;
+    private final int compress;
+    private final boolean stats;
+    private final LatencyHistogram[] histograms = { new LatencyHistogram(), new LatencyHistogram() };
+    private final LongAdder errors = new LongAdder();
+    private Client[] connections;
+
+    /**
+     * Constructs a new Workload.
+     *
+     * @param options The options, by name
+     */
+    public Workload(Map<String, String> options) {
+        this.host = options.getOrDefault("host", "localhost");
+        this.port = Integer.parseInt(options.getOrDefault("port", "8080"));
+        this.clients = Integer.parseInt(options.getOrDefault("clients", "16"));
+        this.records = Long.parseLong(options.getOrDefault("records", "100000"));
+        String workload = options.getOrDefault("workload", "b").toLowerCase();
+        double preset = workload.equals("a") ? 0.5 : workload.equals("c") ? 1.0 : 0.95;
+        this.reads = Double.parseDouble(options.getOrDefault("reads", Double.toString(preset)));
+        this.distribution = options.getOrDefault("distribution", "zipfian");
+        this.keys = KeyDistribution.of(distribution, records,
+                Double.parseDouble(options.getOrDefault("zipfian", "0.99")));
+        this.valueSize = Integer.parseInt(options.getOrDefault("valueSize", "1000"));
+        this.batch = Integer.parseInt(options.getOrDefault("batch", "1"));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10")));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        this.load = Boolean.parseBoolean(options.getOrDefault("load", "true"));
+        this.compress = Integer.parseInt(options.getOrDefault("compress", "0"));
+        this.stats = Boolean.parseBoolean(options.getOrDefault("stats", "false"));
+    }
+
+    /**
+     * Main method to run a workload.
+     *
+     * @param args The options, as {@code --name=value}
+     * @throws Exception If the workload cannot run
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Options are given as --name=value, got " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        new Workload(options).run();
+    }
+
+    /**
+     * Connects the clients, loads the records, runs the workload and prints the
+     * report.
+     *
+     * @throws IOException          If an I/O error occurs
+     * @throws InterruptedException If the thread is interrupted
+     */
+    public void run() throws IOException, InterruptedException {
+        connect();
+        if (load) {
+            long start = System.nanoTime();
+            loadRecords();
+            System.out.printf("Loaded %d records in %d ms%n", records,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        System.out.printf("Running %.0f%% reads, %s keys, %d bytes, batch %d, %d clients, %s for %d s after %d s of "
+                + "warm-up%n", reads * 100, distribution, valueSize, batch, clients,
+                rate > 0 ? String.format("open loop at %.0f ops/s", rate) : "closed loop",
+                TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+
+        long measureFrom = System.nanoTime() + warmupNanos;
+        long end = measureFrom + durationNanos;
+        if (rate > 0) {
+            runOpenLoop(measureFrom, end);
+        } else {
+            runClosedLoop(measureFrom, end);
+        }
+        report(TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        if (stats) {
+            System.out.println("Server metrics:");
+            connections[0].stats().forEach((name, value) -> System.out.println("  " + name + " = " + value));
+        }
+
+        for (Client c : connections) {
+            c.close();
+        }
+    }
+
+    /**
+     * Connects, registers and authenticates every client.
+     */
+    private void connect() throws IOException, InterruptedException {
+        connections = new Client[clients];
+        for (int i = 0; i < clients; i++) {
+            connections[i] = new Client(host, port);
+            if (compress > 0 && !connections[i].enableCompression(compress)) {
+                System.err.println("The server refused compression");
+            }
+            String username = "workload" + i;
+            try {
+                connections[i].register(username, username);
+            } catch (IOException e) {
+                // Already registered by a previous run
+            }
+            connections[i].authenticate(username, username);
+        }
+    }
+
+    /**
+     * Writes every record, spread over the clients.
+     */
+    private void loadRecords() throws InterruptedException {
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final Client c = connections[i];
+            final int first = i;
+            threads[i] = new Thread(() -> {
+                byte[] value = randomValue();
+                Map<String, byte[]> pairs = new HashMap<>();
+                try {
+                    for (long r = first; r < records; r += clients) {
+                        pairs.put(keyOf(r), value);
+                        if (pairs.size() == LOAD_BATCH) {
+                            c.multiPut(pairs);
+                            pairs.clear();
+                        }
+                    }
+                    if (!pairs.isEmpty()) {
+                        c.multiPut(pairs);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * Runs one thread per client, each sending its next operation as soon as
+     * the previous one is answered.
+     */
+    private void runClosedLoop(long measureFrom, long end) throws InterruptedException {
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final Client c = connections[i];
+            threads[i] = new Thread(() -> {
+                byte[] value = randomValue();
+                long now = System.nanoTime();
+                while (now < end) {
+                    int op = nextOperation();
+                    long start = now;
+                    try {
+                        if (op == 0) {
+                            read(c);
+                        } else {
+                            update(c, value);
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    now = System.nanoTime();
+                    if (start >= measureFrom) {
+                        histograms[op].record(TimeUnit.NANOSECONDS.toMicros(now - start));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * Starts operations at a fixed rate, round-robin over the clients, without
+     * waiting for the previous ones to be answered.
+     */
+    private void runOpenLoop(long measureFrom, long end) throws InterruptedException {
+        Semaphore outstanding = new Semaphore(MAX_OUTSTANDING);
+        byte[] value = randomValue();
+        double interval = 1e9 / rate;
+        long start = System.nanoTime();
+        for (long n = 0;; n++) {
+            long due = start + (long) (n * interval);
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int op = nextOperation();
+            Client c = connections[(int) (n % clients)];
+            outstanding.acquire();
+            CompletableFuture<?> future = op == 0 ? readAsync(c) : updateAsync(c, value);
+            future.whenComplete((r, e) -> {
+                // Measured from when the operation was due, not from when it was sent
+                if (e != null) {
+                    errors.increment();
+                } else if (due >= measureFrom) {
+                    histograms[op].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+                }
+                outstanding.release();
+            });
+        }
+        if (!outstanding.tryAcquire(MAX_OUTSTANDING, 60, TimeUnit.SECONDS)) {
+            System.err.println("Some operations were still outstanding after 60 s");
+        }
+    }
+
+    private int nextOperation() {
+        return ThreadLocalRandom.current().nextDouble() < reads ? 0 : 1;
+    }
+
+    private void read(Client c) throws IOException, InterruptedException {
+        if (batch == 1) {
+            c.get(keyOf(keys.next()));
+        } else {
+            c.multiGet(nextKeys());
+        }
+    }
+
+    private void update(Client c, byte[] value) throws IOException, InterruptedException {
+        if (batch == 1) {
+            c.put(keyOf(keys.next()), value);
+        } else {
+            c.multiPut(nextPairs(value));
+        }
+    }
+
+    private CompletableFuture<?> readAsync(Client c) {
+        return batch == 1 ? c.getAsync(keyOf(keys.next())) : c.multiGetAsync(nextKeys());
+    }
+
+    private CompletableFuture<?> updateAsync(Client c, byte[] value) {
+        return batch == 1 ? c.putAsync(keyOf(keys.next()), value) : c.multiPutAsync(nextPairs(value));
+    }
+
+    private Set<String> nextKeys() {
+        Set<String> set = new HashSet<>();
+        while (set.size() < Math.min(batch, records)) {
+            set.add(keyOf(keys.next()));
+        }
+        return set;
+    }
+
+    private Map<String, byte[]> nextPairs(byte[] value) {
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (String key : nextKeys()) {
+            pairs.put(key, value);
+        }
+        return pairs;
+    }
+
+    private byte[] randomValue() {
+        byte[] value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        return value;
+    }
+
+    private static String keyOf(long record) {
+        return "user" + record;
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of every operation type.
+     */
+    private void report(long seconds) {
+        System.out.printf("%-8s %10s %10s %10s %8s %8s %8s %8s %8s%n", "Op", "Count", "Ops/s", "Mean(us)", "p50",
+                "p90", "p99", "p99.9", "Max");
+        LatencyHistogram all = new LatencyHistogram();
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            print(OPERATIONS[op], histograms[op], seconds);
+            all.add(histograms[op]);
+        }
+        print("TOTAL", all, seconds);
+        System.out.println("Errors: " + errors.sum());
+    }
+
+    private static void print(String name, LatencyHistogram h, long seconds) {
+        System.out.printf("%-8s %10d %10.0f %10.1f %8d %8d %8d %8d %8d%n", name, h.count(),
+                (double) h.count() / Math.max(1, seconds), h.mean(), h.percentile(50), h.percentile(90),
+                h.percentile(99), h.percentile(99.9), h.max());
+    }
+}